@@ -52,6 +52,13 @@ public final class Record implements Comparable<Record> {
         return value.asReadOnlyBuffer();
     }
 
+    /**
+     * Compares the key of the record with the given one without copying the key.
+     */
+    public int compareKeyTo(@NotNull final ByteBuffer other) {
+        return key.compareTo(other);
+    }
+
     @Override
     public boolean equals(final Object o) {
         if (this == o) return true;
@@ -23,7 +23,11 @@ import ru.mail.polis.Record;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -61,8 +65,7 @@ public interface DAO extends Closeable {
             return Iters.empty();
         }
 
-        final Record bound = Record.of(to, ByteBuffer.allocate(0));
-        return Iters.until(iterator(from), bound);
+        return Iters.untilKey(iterator(from), to);
     }
 
     /**
@@ -92,11 +95,91 @@ public interface DAO extends Closeable {
             @NotNull ByteBuffer key,
             @NotNull ByteBuffer value) throws IOException;
 
+    /**
+     * Inserts or updates value by given key, the value is removed once the time to live passes.
+     *
+     * @param ttl positive time to live
+     */
+    void upsert(
+            @NotNull ByteBuffer key,
+            @NotNull ByteBuffer value,
+            @NotNull Duration ttl) throws IOException;
+
     /**
      * Removes value by given key.
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies the writes of the batch in order.
+     * Implementations may apply the batch atomically, this one applies the writes one by one.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(
+                    @NotNull final ByteBuffer key,
+                    @NotNull final ByteBuffer value) throws IOException {
+                DAO.this.upsert(key, value);
+            }
+
+            @Override
+            public void upsert(
+                    @NotNull final ByteBuffer key,
+                    @NotNull final ByteBuffer value,
+                    @NotNull final Instant expiresAt) throws IOException {
+                final Duration ttl = Duration.between(Instant.now(), expiresAt);
+                if (ttl.isNegative() || ttl.isZero()) {
+                    DAO.this.remove(key);
+                } else {
+                    DAO.this.upsert(key, value, ttl);
+                }
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) throws IOException {
+                DAO.this.remove(key);
+            }
+
+            @Override
+            public void removeRange(
+                    @NotNull final ByteBuffer from,
+                    @NotNull final ByteBuffer to) throws IOException {
+                DAO.this.removeRange(from, to);
+            }
+        });
+    }
+
+    /**
+     * Removes all the keys from "from" (inclusive) to "to" (exclusive).
+     * Implementations may store a single range tombstone, this one removes the keys one by one
+     * in chunks of a bounded size, resuming the scan after every chunk, so that neither the keys of the range
+     * nor a stale iterator are held while removing.
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @NotNull ByteBuffer to) throws IOException {
+        final int chunk = 1024;
+        final List<ByteBuffer> keys = new ArrayList<>(chunk);
+        ByteBuffer next = from;
+        while (true) {
+            final Iterator<Record> records = range(next, to);
+            while (keys.size() < chunk && records.hasNext()) {
+                keys.add(records.next().getKey());
+            }
+            for (final ByteBuffer key : keys) {
+                remove(key);
+            }
+            if (keys.size() < chunk) {
+                return;
+            }
+            // The removed keys are not seen again, so the scan resumes at the last one
+            final ByteBuffer last = keys.get(keys.size() - 1);
+            next = ByteBuffer.allocate(last.remaining()).put(last.duplicate()).flip();
+            keys.clear();
+        }
+    }
+
     /**
      * Perform compaction
      */
@@ -18,8 +18,12 @@ package ru.mail.polis.dao;
 
 import com.google.common.base.Functions;
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
 
+import java.nio.ByteBuffer;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.function.Function;
 
@@ -57,6 +61,16 @@ public final class Iters {
         return new UntilIterator<>(iter, until);
     }
 
+    /**
+     * Specialization of {@link #until(Iterator, Comparable)} for {@link Record}s.
+     * Compares keys in place, so neither a bound record nor key copies are allocated.
+     */
+    public static Iterator<Record> untilKey(
+            @NotNull final Iterator<Record> iter,
+            @NotNull final ByteBuffer until) {
+        return new RecordUntilIterator(iter, until);
+    }
+
     public static <E> Iterator<E> collapseEquals(
             @NotNull final Iterator<E> iter,
             @NotNull final Function<E, ?> byKey) {
@@ -67,6 +81,30 @@ public final class Iters {
         return new CollapseEqualsIterator<>(iter);
     }
 
+    /**
+     * Specialization of {@link #collapseEquals(Iterator, Function)} collapsing {@link Record}s by key.
+     * Compares keys in place, so no key copies are allocated.
+     */
+    public static Iterator<Record> collapseEqualKeys(@NotNull final Iterator<Record> iter) {
+        return new RecordCollapseEqualsIterator(iter);
+    }
+
+    /**
+     * Merges sorted iterators into a single sorted iterator without duplicates.
+     * Among the elements equal according to the comparator only the one
+     * from the iterator going first in the list survives, so the sources
+     * should be ordered from the freshest to the oldest.
+     * Costs O(log k) comparisons per element for k sources.
+     */
+    public static <E> Iterator<E> mergeSorted(
+            @NotNull final List<? extends Iterator<? extends E>> sources,
+            @NotNull final Comparator<? super E> comparator) {
+        if (sources.isEmpty()) {
+            return empty();
+        }
+        return new MergingIterator<>(sources, comparator);
+    }
+
     private static class UntilIterator<E extends Comparable<E>> implements Iterator<E> {
         private final Iterator<E> iter;
         private final E until;
@@ -124,14 +162,14 @@ public final class Iters {
             assert hasNext();
 
             final E result = next;
+            final Object resultKey = keyExtractor.apply(result);
 
             // Advance to the next distinct key
             this.next = null;
             while (iter.hasNext()) {
-                final E key = iter.next();
-                if (!keyExtractor.apply(key)
-                        .equals(keyExtractor.apply(result))) {
-                    this.next = key;
+                final E candidate = iter.next();
+                if (!keyExtractor.apply(candidate).equals(resultKey)) {
+                    this.next = candidate;
                     break;
                 }
             }
@@ -139,4 +177,162 @@ public final class Iters {
             return result;
         }
     }
+
+    private static class RecordUntilIterator implements Iterator<Record> {
+        private final Iterator<Record> iter;
+        private final ByteBuffer until;
+
+        private Record next;
+
+        RecordUntilIterator(
+                @NotNull final Iterator<Record> iter,
+                @NotNull final ByteBuffer until) {
+            this.iter = iter;
+            this.until = until;
+            this.next = iter.hasNext() ? iter.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null && next.compareKeyTo(until) < 0;
+        }
+
+        @Override
+        public Record next() {
+            assert hasNext();
+
+            final Record result = this.next;
+            this.next = iter.hasNext() ? iter.next() : null;
+            return result;
+        }
+    }
+
+    private static class RecordCollapseEqualsIterator implements Iterator<Record> {
+        private final Iterator<Record> iter;
+
+        private Record next;
+
+        RecordCollapseEqualsIterator(@NotNull final Iterator<Record> iter) {
+            this.iter = iter;
+            this.next = iter.hasNext() ? iter.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Record next() {
+            assert hasNext();
+
+            final Record result = next;
+
+            // Advance to the next distinct key
+            this.next = null;
+            while (iter.hasNext()) {
+                final Record candidate = iter.next();
+                if (candidate.compareTo(result) != 0) {
+                    this.next = candidate;
+                    break;
+                }
+            }
+
+            return result;
+        }
+    }
+
+    private static class MergingIterator<E> implements Iterator<E> {
+        private final List<? extends Iterator<? extends E>> sources;
+        private final Comparator<? super E> comparator;
+        // Current element of each source
+        private final Object[] heads;
+        // Binary min-heap of source indices ordered by their heads, then by the indices
+        private final int[] heap;
+        private int size;
+
+        MergingIterator(
+                @NotNull final List<? extends Iterator<? extends E>> sources,
+                @NotNull final Comparator<? super E> comparator) {
+            this.sources = sources;
+            this.comparator = comparator;
+            this.heads = new Object[sources.size()];
+            this.heap = new int[sources.size()];
+            for (int i = 0; i < sources.size(); i++) {
+                final Iterator<? extends E> source = sources.get(i);
+                if (source.hasNext()) {
+                    heads[i] = source.next();
+                    heap[size++] = i;
+                }
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return size > 0;
+        }
+
+        @Override
+        public E next() {
+            if (size == 0) {
+                throw new NoSuchElementException("Next on exhausted iterator");
+            }
+
+            final E result = head(heap[0]);
+            advanceTop();
+
+            // Shadowed duplicates surface right after the winner
+            while (size > 0 && comparator.compare(head(heap[0]), result) == 0) {
+                advanceTop();
+            }
+
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private E head(final int source) {
+            return (E) heads[source];
+        }
+
+        private void advanceTop() {
+            final int source = heap[0];
+            final Iterator<? extends E> iter = sources.get(source);
+            if (iter.hasNext()) {
+                heads[source] = iter.next();
+            } else {
+                heads[source] = null;
+                heap[0] = heap[--size];
+            }
+            siftDown(0);
+        }
+
+        private void siftDown(final int from) {
+            int parent = from;
+            while (true) {
+                final int left = 2 * parent + 1;
+                if (left >= size) {
+                    return;
+                }
+                final int right = left + 1;
+                final int child = right < size && less(heap[right], heap[left]) ? right : left;
+                if (!less(heap[child], heap[parent])) {
+                    return;
+                }
+                final int tmp = heap[parent];
+                heap[parent] = heap[child];
+                heap[child] = tmp;
+                parent = child;
+            }
+        }
+
+        private boolean less(
+                final int a,
+                final int b) {
+            final int cmp = comparator.compare(head(a), head(b));
+            return cmp < 0 || cmp == 0 && a < b;
+        }
+    }
 }
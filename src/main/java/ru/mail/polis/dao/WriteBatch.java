@@ -0,0 +1,132 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Upserts and removes applied by {@link DAO#write(WriteBatch)} together, in the order they were added.
+ * The buffers are not copied, so they must not be modified until the batch is written.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    // Null for removals
+    private final List<ByteBuffer> values = new ArrayList<>();
+    // Exclusive ends of the removed ranges, null for the rest of the writes
+    private final List<ByteBuffer> ends = new ArrayList<>();
+    // Null for the values living forever and the rest of the writes
+    private final List<Instant> expirations = new ArrayList<>();
+    private long sizeInBytes;
+
+    /**
+     * Receives the writes of the batch.
+     */
+    public interface Handler {
+        void upsert(
+                @NotNull ByteBuffer key,
+                @NotNull ByteBuffer value) throws IOException;
+
+        void upsert(
+                @NotNull ByteBuffer key,
+                @NotNull ByteBuffer value,
+                @NotNull Instant expiresAt) throws IOException;
+
+        void remove(@NotNull ByteBuffer key) throws IOException;
+
+        void removeRange(
+                @NotNull ByteBuffer from,
+                @NotNull ByteBuffer to) throws IOException;
+    }
+
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        return add(key, value.duplicate(), null, null);
+    }
+
+    /**
+     * Upserts the value which is removed at the given time.
+     */
+    @NotNull
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            @NotNull final Instant expiresAt) {
+        return add(key, value.duplicate(), null, expiresAt);
+    }
+
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        return add(key, null, null, null);
+    }
+
+    /**
+     * Removes the keys from "from" (inclusive) to "to" (exclusive).
+     */
+    @NotNull
+    public WriteBatch removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        return add(from, null, to.duplicate(), null);
+    }
+
+    /**
+     * @return number of the writes in the batch
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return total size of the keys and the values in the batch
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Hands the writes over to the handler in order.
+     */
+    public void forEach(@NotNull final Handler handler) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            final ByteBuffer end = ends.get(i);
+            final Instant expiresAt = expirations.get(i);
+            if (end != null) {
+                handler.removeRange(keys.get(i).duplicate(), end.duplicate());
+            } else if (value == null) {
+                handler.remove(keys.get(i).duplicate());
+            } else if (expiresAt != null) {
+                handler.upsert(keys.get(i).duplicate(), value.duplicate(), expiresAt);
+            } else {
+                handler.upsert(keys.get(i).duplicate(), value.duplicate());
+            }
+        }
+    }
+
+    @NotNull
+    private WriteBatch add(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer value,
+            @Nullable final ByteBuffer end,
+            @Nullable final Instant expiresAt) {
+        keys.add(key.duplicate());
+        values.add(value);
+        ends.add(end);
+        expirations.add(expiresAt);
+        sizeInBytes += key.remaining()
+                + (value == null ? 0 : value.remaining())
+                + (end == null ? 0 : end.remaining());
+        return this;
+    }
+}
@@ -0,0 +1,17 @@
+package ru.mail.polis.dao.re1nex;
+
+/**
+ * Defines how flushes and compactions access the files, so that they do not evict the working set of the reads
+ * from the page cache the mapped tables are read through.
+ */
+public enum BackgroundIo {
+    /**
+     * Files are written and read through the page cache.
+     */
+    BUFFERED,
+    /**
+     * Written tables and value log segments, as well as the compaction inputs, bypass the page cache.
+     * Falls back to {@link #BUFFERED} if the file system does not support direct I/O.
+     */
+    DIRECT
+}
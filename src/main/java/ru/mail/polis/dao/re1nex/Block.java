@@ -0,0 +1,254 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Uncompressed block of {@link SSTable} records.
+ * <p>
+ * Layout:
+ * <pre>
+ * [shared:varint unshared:varint valueTag:varint keySuffix value]* [restartOffset:int]* restarts:int
+ * </pre>
+ * A key is stored as the length of the prefix shared with the previous key followed by the rest of it.
+ * Every {@link #RESTART_INTERVAL}-th key is stored in full, such restart points are binary searched,
+ * then the records are scanned from the restart point.
+ * The value tag is either {@link #TOMBSTONE}, {@link #SEPARATED} followed by
+ * {@code segment:long offset:int length:int crc:int} pointing to the {@link ValueLog}
+ * or the inline value length incremented by {@link #INLINE}.
+ * An expiring value is tagged {@link #EXPIRING} followed by {@code expiresAt:long valueTag:varint value}.
+ * Keys stored in full and values are handed out as views of the block buffer,
+ * the rest of the keys are restored into fresh buffers.
+ */
+final class Block {
+    static final int RESTART_INTERVAL = 16;
+    static final int TOMBSTONE = 0;
+    static final int SEPARATED = 1;
+    static final int EXPIRING = 2;
+    static final int INLINE = 3;
+
+    @NotNull
+    private final ByteBuffer data;
+    private final int restarts;
+    // End of the records
+    private final int restartsStart;
+    // Mapped segments referenced by the table
+    @NotNull
+    private final Map<Long, ByteBuffer> valueLog;
+    private final boolean verify;
+
+    /**
+     * @param data     block bytes from position 0 up to the limit
+     * @param valueLog mapped value log segments by id
+     * @param verify   whether to verify the checksums of the separated values,
+     *                 a corrupted value is thrown as {@link UncheckedIOException}
+     */
+    Block(
+            @NotNull final ByteBuffer data,
+            @NotNull final Map<Long, ByteBuffer> valueLog,
+            final boolean verify) throws IOException {
+        this.data = data;
+        this.valueLog = valueLog;
+        this.verify = verify;
+        final int limit = data.limit();
+        if (limit < Integer.BYTES) {
+            throw new IOException("Block is too short: " + limit);
+        }
+        this.restarts = data.getInt(limit - Integer.BYTES);
+        this.restartsStart = limit - Integer.BYTES - restarts * Integer.BYTES;
+        if (restarts <= 0 || restartsStart < 0) {
+            throw new IOException("Corrupted block of " + restarts + " restarts");
+        }
+    }
+
+    /**
+     * @return all the records
+     */
+    @NotNull
+    Iterator<Cell> iterator() {
+        return new Cursor(restartOffset(0));
+    }
+
+    /**
+     * @return records with keys not less than the given one
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        final Cursor cursor = new Cursor(restartOffset(restartOf(from)));
+        cursor.skipTo(from);
+        return cursor;
+    }
+
+    /**
+     * @return value of the key or {@code null} if the block has no such key
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        final Iterator<Cell> cells = iterator(key);
+        if (!cells.hasNext()) {
+            return null;
+        }
+        final Cell cell = cells.next();
+        return cell.getKey().equals(key) ? cell.getValue() : null;
+    }
+
+    @NotNull
+    ByteBuffer lastKey() {
+        final Cursor cursor = new Cursor(restartOffset(restarts - 1));
+        Cell last = cursor.next();
+        while (cursor.hasNext()) {
+            last = cursor.next();
+        }
+        return last.getKey();
+    }
+
+    /**
+     * @return the last restart point with the key not greater than the given one or the first one
+     */
+    private int restartOf(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = restarts - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = new Cursor(restartOffset(mid)).next().getKey().compareTo(key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return Math.max(0, right);
+    }
+
+    private int restartOffset(final int restart) {
+        return data.getInt(restartsStart + restart * Integer.BYTES);
+    }
+
+    @NotNull
+    private ByteBuffer slice(
+            final int position,
+            final int size) {
+        return data.duplicate()
+                .position(position)
+                .limit(position + size)
+                .slice();
+    }
+
+    /**
+     * Decodes records one by one restoring the keys.
+     */
+    private final class Cursor implements Iterator<Cell> {
+        private int position;
+        @Nullable
+        private ByteBuffer key;
+        // Decoded ahead by skipTo()
+        @Nullable
+        private Cell pending;
+
+        Cursor(final int position) {
+            this.position = position;
+        }
+
+        void skipTo(@NotNull final ByteBuffer from) {
+            while (position < restartsStart) {
+                final Cell cell = decode();
+                if (cell.getKey().compareTo(from) >= 0) {
+                    pending = cell;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pending != null || position < restartsStart;
+        }
+
+        @Override
+        public Cell next() {
+            if (pending != null) {
+                final Cell result = pending;
+                pending = null;
+                return result;
+            }
+            if (position >= restartsStart) {
+                throw new NoSuchElementException();
+            }
+            return decode();
+        }
+
+        @NotNull
+        private Cell decode() {
+            final int shared = readVarint();
+            final int unshared = readVarint();
+            int valueTag = readVarint();
+
+            final ByteBuffer suffix = slice(position, unshared);
+            position += unshared;
+            if (shared == 0) {
+                key = suffix;
+            } else {
+                assert key != null;
+                final ByteBuffer restored = ByteBuffer.allocate(shared + unshared);
+                restored.put(key.duplicate().limit(shared));
+                restored.put(suffix);
+                key = restored.flip();
+            }
+
+            if (valueTag == TOMBSTONE) {
+                return new Cell(key, Value.tombstone());
+            }
+            long expiresAt = Value.NEVER;
+            if (valueTag == EXPIRING) {
+                expiresAt = data.getLong(position);
+                position += Long.BYTES;
+                valueTag = readVarint();
+            }
+            if (valueTag == SEPARATED) {
+                final ValueLog.Pointer pointer = new ValueLog.Pointer(
+                        data.getLong(position),
+                        data.getInt(position + Long.BYTES),
+                        data.getInt(position + Long.BYTES + Integer.BYTES),
+                        data.getInt(position + Long.BYTES + Integer.BYTES * 2));
+                position += ValueLog.Pointer.SIZE;
+                final ByteBuffer segment = valueLog.get(pointer.segment);
+                if (segment == null) {
+                    throw new IllegalStateException("Unknown value log segment " + pointer.segment);
+                }
+                final ByteBuffer value = segment.duplicate()
+                        .position(pointer.offset)
+                        .limit(pointer.offset + pointer.length)
+                        .slice();
+                if (verify && Checksums.of(value) != pointer.checksum) {
+                    throw new UncheckedIOException(new IOException(
+                            "Corrupted value at " + pointer.offset + " of value log segment " + pointer.segment));
+                }
+                return new Cell(key, Value.separated(value, pointer, expiresAt));
+            }
+            final int valueLength = valueTag - INLINE;
+            final ByteBuffer value = slice(position, valueLength);
+            position += valueLength;
+            return new Cell(key, Value.of(value, expiresAt));
+        }
+
+        private int readVarint() {
+            int result = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = data.get(position++);
+                result |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Accumulates records into a {@link Block}, the buffer is reused from block to block.
+ */
+final class BlockBuilder {
+    // Longest varint of an int
+    private static final int MAX_VARINT = 5;
+
+    @NotNull
+    private ByteBuffer buffer;
+    @NotNull
+    private int[] restarts = new int[16];
+    private int restartCount;
+    private int count;
+    // Keys are delta-encoded against the previous one
+    @Nullable
+    private ByteBuffer lastKey;
+
+    BlockBuilder(final int blockSize) {
+        this.buffer = ByteBuffer.allocate(blockSize * 2);
+    }
+
+    /**
+     * Appends the record, keys must go in ascending order.
+     */
+    void add(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        final ValueLog.Pointer pointer = value.getPointer();
+        final ByteBuffer data = value.isTombstone() || pointer != null ? null : value.getData();
+        int shared = 0;
+        if (count % Block.RESTART_INTERVAL == 0) {
+            if (restartCount == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restartCount * 2);
+            }
+            restarts[restartCount++] = buffer.position();
+        } else {
+            assert lastKey != null;
+            final int mismatch = lastKey.mismatch(key);
+            shared = mismatch < 0 ? key.remaining() : Math.min(mismatch, key.remaining());
+        }
+        final int unshared = key.remaining() - shared;
+
+        final boolean expiring = !value.isTombstone() && value.getExpiresAt() != Value.NEVER;
+        ensureCapacity(MAX_VARINT * 4 + Long.BYTES + unshared
+                + (data == null ? ValueLog.Pointer.SIZE : data.remaining()));
+        putVarint(shared);
+        putVarint(unshared);
+        if (expiring) {
+            putVarint(Block.EXPIRING);
+        } else {
+            putValueTag(data, pointer);
+        }
+        buffer.put(key.duplicate().position(key.position() + shared));
+        if (expiring) {
+            buffer.putLong(value.getExpiresAt());
+            putValueTag(data, pointer);
+        }
+        if (data != null) {
+            buffer.put(data);
+        } else if (pointer != null) {
+            buffer.putLong(pointer.segment);
+            buffer.putInt(pointer.offset);
+            buffer.putInt(pointer.length);
+            buffer.putInt(pointer.checksum);
+        }
+        lastKey = key.duplicate();
+        count++;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return size of the block built of the records added so far
+     */
+    int sizeInBytes() {
+        return buffer.position() + (restartCount + 1) * Integer.BYTES;
+    }
+
+    /**
+     * Completes the block and starts a new one.
+     *
+     * @return the block bytes valid until the next record is added
+     */
+    @NotNull
+    ByteBuffer build() {
+        ensureCapacity((restartCount + 1) * Integer.BYTES);
+        for (int i = 0; i < restartCount; i++) {
+            buffer.putInt(restarts[i]);
+        }
+        buffer.putInt(restartCount);
+        final ByteBuffer block = buffer.duplicate().flip();
+        buffer.clear();
+        restartCount = 0;
+        count = 0;
+        lastKey = null;
+        return block;
+    }
+
+    private void putValueTag(
+            @Nullable final ByteBuffer data,
+            @Nullable final ValueLog.Pointer pointer) {
+        if (data != null) {
+            putVarint(data.remaining() + Block.INLINE);
+        } else {
+            putVarint(pointer == null ? Block.TOMBSTONE : Block.SEPARATED);
+        }
+    }
+
+    private void putVarint(final int value) {
+        int rest = value;
+        while ((rest & ~0x7F) != 0) {
+            buffer.put((byte) ((rest & 0x7F) | 0x80));
+            rest >>>= 7;
+        }
+        buffer.put((byte) rest);
+    }
+
+    private void ensureCapacity(final int size) {
+        if (buffer.remaining() < size) {
+            final long required = (long) buffer.position() + size;
+            final long capacity = Math.max(required, (long) buffer.capacity() * 2);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Block is too large: " + required);
+            }
+            final ByteBuffer grown = ByteBuffer.allocate((int) capacity);
+            grown.put(buffer.flip());
+            buffer = grown;
+        }
+    }
+}
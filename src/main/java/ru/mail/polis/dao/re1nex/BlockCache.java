@@ -0,0 +1,257 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Fixed-capacity off-heap cache of {@link SSTable} blocks shared by all the tables of a {@link LsmDAO}.
+ * <p>
+ * The capacity is split into independently locked segments of fixed-size slots in direct memory,
+ * allocated on first use unless the {@link MemoryBudget} is exhausted
+ * and dropped whenever the writers run out of the budget, so the cache takes only the memory nobody else needs.
+ * Slots are evicted by the CLOCK algorithm, blocks larger than a slot are not cached.
+ * The slot of a cached block may be reused as soon as its segment is unlocked, so a point read decodes
+ * the block in place under the lock and copies out nothing but the value found,
+ * while a scan, whose cells outlive the lock, gets a copy of the block.
+ * Blocks of the removed tables are never hit again and are evicted in due course.
+ */
+final class BlockCache {
+    private static final int SEGMENTS = 16;
+
+    @NotNull
+    private final Segment[] segments;
+    private final int slotSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param capacity bytes of direct memory to use
+     * @param slotSize maximal size of a cached block
+     * @param budget   memory the segments are charged to, a segment is left unused if the budget is exhausted
+     */
+    BlockCache(
+            final long capacity,
+            final int slotSize,
+            @NotNull final MemoryBudget budget) {
+        this.slotSize = slotSize;
+        final long slots = capacity / slotSize / SEGMENTS;
+        if (slots * slotSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Block cache is too large: " + capacity);
+        }
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment((int) slots, slotSize, budget);
+        }
+    }
+
+    /**
+     * Reads a cached block in place.
+     */
+    interface Reader {
+        /**
+         * @param block read-only view of the block, neither it nor its slices may be retained
+         */
+        void read(@NotNull ByteBuffer block) throws IOException;
+    }
+
+    /**
+     * Applies the reader to the cached block holding the lock of its segment.
+     *
+     * @return {@code false} if the block is not cached
+     */
+    boolean read(
+            final long table,
+            final int block,
+            @NotNull final Reader reader) throws IOException {
+        final long key = key(table, block);
+        final boolean cached = segmentOf(key).read(key, reader);
+        if (cached) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return cached;
+    }
+
+    /**
+     * @return heap copy of the cached block or {@code null} if it is not cached
+     */
+    @Nullable
+    ByteBuffer get(
+            final long table,
+            final int block) {
+        final long key = key(table, block);
+        final ByteBuffer result = segmentOf(key).get(key);
+        if (result == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Caches the block from its position to the limit unless it is too large.
+     */
+    void put(
+            final long table,
+            final int block,
+            @NotNull final ByteBuffer data) {
+        if (data.remaining() > slotSize) {
+            return;
+        }
+        final long key = key(table, block);
+        segmentOf(key).put(key, data);
+    }
+
+    /**
+     * Drops the segments one by one returning their memory to the budget until there is enough of it.
+     *
+     * @return whether there is enough memory
+     */
+    boolean shrink(@NotNull final BooleanSupplier enough) {
+        for (final Segment segment : segments) {
+            if (enough.getAsBoolean()) {
+                return true;
+            }
+            segment.drop();
+        }
+        return enough.getAsBoolean();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private static long key(
+            final long table,
+            final int block) {
+        return (table << Integer.SIZE) | (block & 0xFFFFFFFFL);
+    }
+
+    @NotNull
+    private Segment segmentOf(final long key) {
+        // Spread the bits of both the table and the block
+        final long hash = key * 0x9E3779B97F4A7C15L;
+        return segments[(int) (hash >>> (Long.SIZE - 4)) & (SEGMENTS - 1)];
+    }
+
+    private static final class Segment {
+        private final int slotSize;
+        private final int slotCount;
+        @NotNull
+        private final MemoryBudget budget;
+        // Key -> slot
+        private final Map<Long, Integer> slots = new HashMap<>();
+        private final long[] keys;
+        private final int[] sizes;
+        private final boolean[] referenced;
+        @Nullable
+        private ByteBuffer memory;
+        private int used;
+        private int hand;
+
+        Segment(
+                final int slotCount,
+                final int slotSize,
+                @NotNull final MemoryBudget budget) {
+            this.slotSize = slotSize;
+            this.slotCount = slotCount;
+            this.budget = budget;
+            this.keys = new long[slotCount];
+            this.sizes = new int[slotCount];
+            this.referenced = new boolean[slotCount];
+        }
+
+        @Nullable
+        synchronized ByteBuffer get(final long key) {
+            final Integer slot = slots.get(key);
+            if (slot == null) {
+                return null;
+            }
+            referenced[slot] = true;
+            final ByteBuffer copy = ByteBuffer.allocate(sizes[slot]);
+            copy.put(slice(slot, sizes[slot]));
+            return copy.flip();
+        }
+
+        synchronized boolean read(
+                final long key,
+                @NotNull final Reader reader) throws IOException {
+            final Integer slot = slots.get(key);
+            if (slot == null) {
+                return false;
+            }
+            referenced[slot] = true;
+            reader.read(slice(slot, sizes[slot]).asReadOnlyBuffer());
+            return true;
+        }
+
+        synchronized void put(
+                final long key,
+                @NotNull final ByteBuffer data) {
+            if (slotCount == 0 || slots.containsKey(key)) {
+                return;
+            }
+            if (memory == null) {
+                // Retried on the next put, the budget may be freed meanwhile
+                if (!budget.tryReserve(MemoryBudget.Pool.BLOCK_CACHE, (long) slotCount * slotSize)) {
+                    return;
+                }
+                memory = ByteBuffer.allocateDirect(slotCount * slotSize);
+            }
+
+            final int slot = used < slotCount ? used++ : evict();
+            keys[slot] = key;
+            sizes[slot] = data.remaining();
+            referenced[slot] = false;
+            slice(slot, slotSize).put(data.duplicate());
+            slots.put(key, slot);
+        }
+
+        synchronized void drop() {
+            if (memory == null) {
+                return;
+            }
+            memory = null;
+            slots.clear();
+            used = 0;
+            hand = 0;
+            budget.release(MemoryBudget.Pool.BLOCK_CACHE, (long) slotCount * slotSize);
+        }
+
+        private int evict() {
+            // Recently referenced slots get the second chance
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand + 1) % slotCount;
+            }
+            final int victim = hand;
+            hand = (hand + 1) % slotCount;
+            slots.remove(keys[victim]);
+            return victim;
+        }
+
+        @NotNull
+        private ByteBuffer slice(
+                final int slot,
+                final int size) {
+            assert memory != null;
+            return memory.duplicate()
+                    .position(slot * slotSize)
+                    .limit(slot * slotSize + size)
+                    .slice();
+        }
+    }
+}
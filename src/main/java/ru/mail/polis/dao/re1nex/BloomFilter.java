@@ -0,0 +1,121 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over the keys of an {@link SSTable}.
+ * <p>
+ * Bits are stored as 64-bit words, probes are derived from a single 64-bit hash
+ * of the key by double hashing, so a lookup hashes the key bytes only once.
+ */
+final class BloomFilter {
+    static final int BITS_PER_KEY = 10;
+    // ln(2) * BITS_PER_KEY gives the minimal false positive rate, about 1%
+    static final int HASH_COUNT = 7;
+
+    // MurmurHash64A constants
+    private static final long M = 0xc6a4a7935bd1e995L;
+    private static final int R = 47;
+    private static final long SEED = 0x5EED5EEDL;
+
+    @NotNull
+    private final LongBuffer words;
+    private final long bits;
+    private final int hashCount;
+
+    BloomFilter(
+            @NotNull final LongBuffer words,
+            final int hashCount) {
+        this.words = words;
+        this.bits = (long) words.capacity() * Long.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * @return number of 64-bit words needed to hold the filter for the given number of keys
+     */
+    static int wordsFor(final long keys) {
+        final long bits = Math.max(Long.SIZE, keys * BITS_PER_KEY);
+        final long words = (bits + Long.SIZE - 1) / Long.SIZE;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many keys for a filter: " + keys);
+        }
+        return (int) words;
+    }
+
+    /**
+     * Sets the bits of the key hash in the filter words, so the filter is built as the keys are streamed.
+     */
+    static void add(
+            @NotNull final long[] words,
+            final long hash,
+            final int hashCount) {
+        final long bits = (long) words.length * Long.SIZE;
+        long combined = hash;
+        final long step = (hash >>> 32) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+            combined += step;
+        }
+    }
+
+    /**
+     * @return {@code false} if the key is definitely absent
+     */
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        long combined = hash;
+        final long step = (hash >>> 32) | 1L;
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += step;
+        }
+        return true;
+    }
+
+    /**
+     * MurmurHash64A of the remaining bytes, the buffer position is left intact.
+     * Words are read in the big-endian order whatever the order of the buffer is,
+     * so the lookups hash the keys the same way as the filter was built.
+     */
+    static long hash(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer key = buffer.order() == ByteOrder.BIG_ENDIAN
+                ? buffer
+                : buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        final int length = key.remaining();
+        long h = SEED ^ (length * M);
+
+        int position = key.position();
+        final int limit = key.limit();
+        for (; position + Long.BYTES <= limit; position += Long.BYTES) {
+            long k = key.getLong(position);
+            k *= M;
+            k ^= k >>> R;
+            k *= M;
+            h ^= k;
+            h *= M;
+        }
+
+        if (position < limit) {
+            long tail = 0;
+            for (; position < limit; position++) {
+                tail = (tail << 8) | (key.get(position) & 0xFF);
+            }
+            h ^= tail;
+            h *= M;
+        }
+
+        h ^= h >>> R;
+        h *= M;
+        h ^= h >>> R;
+        return h;
+    }
+}
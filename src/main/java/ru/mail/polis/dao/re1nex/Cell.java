@@ -0,0 +1,44 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+
+/**
+ * Key bound to its {@link Value} as it is stored in a table.
+ */
+final class Cell {
+    /**
+     * Orders by key only: freshness is defined by the table the cell comes from.
+     */
+    static final Comparator<Cell> COMPARATOR = Comparator.comparing(c -> c.key);
+
+    @NotNull
+    private final ByteBuffer key;
+    @NotNull
+    private final Value value;
+
+    Cell(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    @NotNull
+    ByteBuffer getKey() {
+        return key.asReadOnlyBuffer();
+    }
+
+    @NotNull
+    Value getValue() {
+        return value;
+    }
+
+    @NotNull
+    Record toRecord() {
+        return Record.of(key, value.getData());
+    }
+}
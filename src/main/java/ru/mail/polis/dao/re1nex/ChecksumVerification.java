@@ -0,0 +1,16 @@
+package ru.mail.polis.dao.re1nex;
+
+/**
+ * Defines when the checksums of the SSTable blocks and the separated values are verified.
+ * Blocks read from the disk into the block cache are verified regardless.
+ */
+public enum ChecksumVerification {
+    /**
+     * Every read is verified, so corruption is reported instead of returning garbage.
+     */
+    ALWAYS,
+    /**
+     * Only compactions verify the data they rewrite, reads of mapped blocks and values are trusted.
+     */
+    COMPACTION
+}
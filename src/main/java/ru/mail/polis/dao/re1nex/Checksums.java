@@ -0,0 +1,26 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C checksums guarding the stored data against silent corruption.
+ */
+final class Checksums {
+    private Checksums() {
+        // Not instantiable
+    }
+
+    /**
+     * @return checksum of the remaining bytes of the parts taken together, the parts are not consumed
+     */
+    static int of(@NotNull final ByteBuffer... parts) {
+        final CRC32C crc = new CRC32C();
+        for (final ByteBuffer part : parts) {
+            crc.update(part.duplicate());
+        }
+        return (int) crc.getValue();
+    }
+}
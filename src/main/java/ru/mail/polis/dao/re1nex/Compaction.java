@@ -0,0 +1,90 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SSTables chosen by a {@link CompactionStrategy} to be merged together.
+ * <p>
+ * Level 0 result takes the place of its inputs, which must be adjacent level 0 tables.
+ * Deeper level result is split into tables of the target size.
+ */
+final class Compaction {
+    @NotNull
+    private final List<SSTable> inputs;
+    private final int level;
+    // Key range of the inputs, absent if all of them are empty
+    @Nullable
+    private final ByteBuffer firstKey;
+    @Nullable
+    private final ByteBuffer lastKey;
+
+    /**
+     * @param inputs tables to merge
+     * @param level  level of the result
+     */
+    Compaction(
+            @NotNull final Collection<SSTable> inputs,
+            final int level) {
+        final List<SSTable> sorted = new ArrayList<>(inputs);
+        sorted.sort(SSTable.FRESHEST_FIRST);
+        this.inputs = Collections.unmodifiableList(sorted);
+        this.level = level;
+
+        ByteBuffer first = null;
+        ByteBuffer last = null;
+        for (final SSTable table : inputs) {
+            if (table.firstKey() == null || table.lastKey() == null) {
+                continue;
+            }
+            if (first == null || table.firstKey().compareTo(first) < 0) {
+                first = table.firstKey();
+            }
+            if (last == null || table.lastKey().compareTo(last) > 0) {
+                last = table.lastKey();
+            }
+        }
+        this.firstKey = first;
+        this.lastKey = last;
+    }
+
+    /**
+     * @return tables to merge, the freshest goes first
+     */
+    @NotNull
+    List<SSTable> inputs() {
+        return inputs;
+    }
+
+    int level() {
+        return level;
+    }
+
+    /**
+     * @return whether the table has keys within the key range of the inputs
+     */
+    boolean overlaps(@NotNull final SSTable table) {
+        return firstKey != null && lastKey != null && table.overlaps(firstKey, lastKey);
+    }
+
+    /**
+     * Tombstones may be dropped if no table staler than the inputs has anything to be shadowed by them.
+     *
+     * @param freshestFirst all the live SSTables
+     */
+    boolean isBottom(@NotNull final List<SSTable> freshestFirst) {
+        final int freshest = freshestFirst.indexOf(inputs.get(0));
+        for (final SSTable table : freshestFirst.subList(freshest + 1, freshestFirst.size())) {
+            if (!inputs.contains(table) && overlaps(table)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,36 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which SSTables are merged by the compactor.
+ */
+interface CompactionStrategy {
+    /**
+     * @param freshestFirst live SSTables in {@link SSTable#FRESHEST_FIRST} order
+     * @return compaction worth running in the background or {@code null} if there is nothing to do
+     */
+    @Nullable
+    Compaction select(@NotNull List<SSTable> freshestFirst);
+
+    /**
+     * @param freshestFirst live SSTables in {@link SSTable#FRESHEST_FIRST} order
+     * @return compaction merging as much as possible for {@link LsmDAO#compact()}
+     * or {@code null} if there is nothing to do
+     */
+    @Nullable
+    Compaction major(@NotNull List<SSTable> freshestFirst);
+
+    /**
+     * @param freshestFirst live SSTables in {@link SSTable#FRESHEST_FIRST} order
+     * @param table         table full of tombstones
+     * @return compaction merging the table with the staler tables its tombstones may shadow
+     */
+    @NotNull
+    Compaction purge(
+            @NotNull List<SSTable> freshestFirst,
+            @NotNull SSTable table);
+}
@@ -0,0 +1,15 @@
+package ru.mail.polis.dao.re1nex;
+
+/**
+ * Compaction strategy used by {@link LsmDAO}.
+ */
+public enum CompactionStyle {
+    /**
+     * Merge tables of similar size, favours write throughput, see {@link SizeTieredCompaction}.
+     */
+    SIZE_TIERED,
+    /**
+     * Keep levels of non-overlapping tables, favours reads, see {@link LeveledCompaction}.
+     */
+    LEVELED
+}
@@ -0,0 +1,34 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Compression of {@link SSTable} blocks.
+ */
+public enum Compression {
+    /**
+     * Blocks are stored as is and read without copying.
+     */
+    NONE(0),
+    /**
+     * Blocks are compressed by {@link java.util.zip.Deflater}, a block is left uncompressed if it does not shrink.
+     */
+    DEFLATE(1);
+
+    // Stored in the table footer
+    final int id;
+
+    Compression(final int id) {
+        this.id = id;
+    }
+
+    @NotNull
+    static Compression of(final int id) {
+        for (final Compression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression " + id);
+    }
+}
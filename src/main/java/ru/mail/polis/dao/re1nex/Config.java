@@ -0,0 +1,389 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tunables of {@link LsmDAO}.
+ */
+public final class Config {
+    /**
+     * Settings used by {@link ru.mail.polis.dao.DAOFactory#create(java.io.File)}.
+     */
+    public static final Config DEFAULT = builder().build();
+
+    private final long flushThreshold;
+    private final int flushQueueSize;
+    @NotNull
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final int compactionThreshold;
+    @NotNull
+    private final CompactionStyle compactionStyle;
+    private final long targetTableSize;
+    private final long writeRateLimit;
+    private final int blockSize;
+    @NotNull
+    private final Compression compression;
+    private final long blockCacheSize;
+    private final int valueLogThreshold;
+    private final double valueLogGarbageRatio;
+    @NotNull
+    private final ChecksumVerification checksumVerification;
+    private final long gcGraceMillis;
+    private final double tombstoneCompactionRatio;
+    private final long memoryLimit;
+    private final long writeStallMillis;
+    @NotNull
+    private final BackgroundIo backgroundIo;
+
+    private Config(@NotNull final Builder builder) {
+        this.flushThreshold = builder.flushThreshold;
+        this.flushQueueSize = builder.flushQueueSize;
+        this.syncPolicy = builder.syncPolicy;
+        this.syncIntervalMillis = builder.syncIntervalMillis;
+        this.compactionThreshold = builder.compactionThreshold;
+        this.compactionStyle = builder.compactionStyle;
+        this.targetTableSize = builder.targetTableSize;
+        this.writeRateLimit = builder.writeRateLimit;
+        this.blockSize = builder.blockSize;
+        this.compression = builder.compression;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.valueLogThreshold = builder.valueLogThreshold;
+        this.valueLogGarbageRatio = builder.valueLogGarbageRatio;
+        this.checksumVerification = builder.checksumVerification;
+        this.gcGraceMillis = builder.gcGraceMillis;
+        this.tombstoneCompactionRatio = builder.tombstoneCompactionRatio;
+        this.memoryLimit = builder.memoryLimit;
+        this.writeStallMillis = builder.writeStallMillis;
+        this.backgroundIo = builder.backgroundIo;
+    }
+
+    @NotNull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return MemTable size in bytes which triggers a flush
+     */
+    public long getFlushThreshold() {
+        return flushThreshold;
+    }
+
+    /**
+     * @return number of frozen MemTables allowed to wait for the flusher before writers stall
+     */
+    public int getFlushQueueSize() {
+        return flushQueueSize;
+    }
+
+    @NotNull
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    /**
+     * @return period of log forcing under {@link SyncPolicy#PERIODIC}
+     */
+    public long getSyncIntervalMillis() {
+        return syncIntervalMillis;
+    }
+
+    /**
+     * @return number of similar-sized SSTables or level 0 SSTables under {@link CompactionStyle#LEVELED}
+     * which triggers a background compaction
+     */
+    public int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    @NotNull
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    /**
+     * @return size of the SSTables produced by {@link CompactionStyle#LEVELED} compaction
+     */
+    public long getTargetTableSize() {
+        return targetTableSize;
+    }
+
+    /**
+     * @return initial disk write rate of flushes and compactions in bytes per second, zero if unlimited
+     * @see LsmDAO#setWriteRateLimit(long)
+     */
+    public long getWriteRateLimit() {
+        return writeRateLimit;
+    }
+
+    /**
+     * @return uncompressed size of SSTable blocks, a point lookup reads a single block
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    @NotNull
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return off-heap memory for decompressed blocks and blocks of the tables too large to be mapped
+     */
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    /**
+     * @return size of the values stored in the value log apart from the SSTables, zero keeps all the values inline
+     */
+    public int getValueLogThreshold() {
+        return valueLogThreshold;
+    }
+
+    /**
+     * @return share of unreferenced bytes in a value log segment which makes compactions relocate its values
+     */
+    public double getValueLogGarbageRatio() {
+        return valueLogGarbageRatio;
+    }
+
+    @NotNull
+    public ChecksumVerification getChecksumVerification() {
+        return checksumVerification;
+    }
+
+    /**
+     * @return time tombstones are kept for after their table was written, even if they shadow nothing
+     */
+    public long getGcGraceMillis() {
+        return gcGraceMillis;
+    }
+
+    /**
+     * @return share of tombstones among the records of an SSTable which makes the compactor purge them
+     */
+    public double getTombstoneCompactionRatio() {
+        return tombstoneCompactionRatio;
+    }
+
+    /**
+     * @return bytes of the {@link MemoryBudget} shared by the MemTables, the block cache and the requests in flight
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @return time a write waits for the exhausted {@link MemoryBudget} to be freed before it is rejected
+     */
+    public long getWriteStallMillis() {
+        return writeStallMillis;
+    }
+
+    /**
+     * @return whether flushes and compactions bypass the page cache
+     */
+    @NotNull
+    public BackgroundIo getBackgroundIo() {
+        return backgroundIo;
+    }
+
+    /**
+     * Mutable {@link Config} builder, every setting has a sane default.
+     */
+    public static final class Builder {
+        private long flushThreshold = 16L * 1024 * 1024;
+        private int flushQueueSize = 2;
+        @NotNull
+        private SyncPolicy syncPolicy = SyncPolicy.PERIODIC;
+        private long syncIntervalMillis = 1000L;
+        private int compactionThreshold = 4;
+        @NotNull
+        private CompactionStyle compactionStyle = CompactionStyle.SIZE_TIERED;
+        private long targetTableSize = 32L * 1024 * 1024;
+        private long writeRateLimit;
+        private int blockSize = 8 * 1024;
+        @NotNull
+        private Compression compression = Compression.NONE;
+        private long blockCacheSize = 32L * 1024 * 1024;
+        private int valueLogThreshold;
+        private double valueLogGarbageRatio = 0.5;
+        @NotNull
+        private ChecksumVerification checksumVerification = ChecksumVerification.ALWAYS;
+        private long gcGraceMillis;
+        private double tombstoneCompactionRatio = 0.2;
+        // Half of the 256 MB heap, the rest is left for the reads and the compactions
+        private long memoryLimit = 128L * 1024 * 1024;
+        private long writeStallMillis = 10_000L;
+        @NotNull
+        private BackgroundIo backgroundIo = BackgroundIo.BUFFERED;
+
+        private Builder() {
+            // Use Config.builder()
+        }
+
+        @NotNull
+        public Builder flushThreshold(final long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Flush threshold must be positive: " + bytes);
+            }
+            this.flushThreshold = bytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder flushQueueSize(final int tables) {
+            if (tables <= 0) {
+                throw new IllegalArgumentException("Flush queue size must be positive: " + tables);
+            }
+            this.flushQueueSize = tables;
+            return this;
+        }
+
+        @NotNull
+        public Builder syncPolicy(@NotNull final SyncPolicy policy) {
+            this.syncPolicy = policy;
+            return this;
+        }
+
+        @NotNull
+        public Builder syncIntervalMillis(final long millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("Sync interval must be positive: " + millis);
+            }
+            this.syncIntervalMillis = millis;
+            return this;
+        }
+
+        @NotNull
+        public Builder compactionThreshold(final int tables) {
+            if (tables < 2) {
+                throw new IllegalArgumentException("Compaction threshold must be at least 2: " + tables);
+            }
+            this.compactionThreshold = tables;
+            return this;
+        }
+
+        @NotNull
+        public Builder compactionStyle(@NotNull final CompactionStyle style) {
+            this.compactionStyle = style;
+            return this;
+        }
+
+        @NotNull
+        public Builder targetTableSize(final long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Target table size must be positive: " + bytes);
+            }
+            this.targetTableSize = bytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder writeRateLimit(final long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Write rate limit must not be negative: " + bytesPerSecond);
+            }
+            this.writeRateLimit = bytesPerSecond;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockSize(final int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Block size must be positive: " + bytes);
+            }
+            this.blockSize = bytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        @NotNull
+        public Builder blockCacheSize(final long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Block cache size must not be negative: " + bytes);
+            }
+            this.blockCacheSize = bytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder valueLogThreshold(final int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Value log threshold must not be negative: " + bytes);
+            }
+            this.valueLogThreshold = bytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder valueLogGarbageRatio(final double ratio) {
+            if (!(ratio > 0 && ratio <= 1)) {
+                throw new IllegalArgumentException("Value log garbage ratio must be within (0, 1]: " + ratio);
+            }
+            this.valueLogGarbageRatio = ratio;
+            return this;
+        }
+
+        @NotNull
+        public Builder checksumVerification(@NotNull final ChecksumVerification verification) {
+            this.checksumVerification = verification;
+            return this;
+        }
+
+        @NotNull
+        public Builder gcGraceMillis(final long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("GC grace period must not be negative: " + millis);
+            }
+            this.gcGraceMillis = millis;
+            return this;
+        }
+
+        @NotNull
+        public Builder tombstoneCompactionRatio(final double ratio) {
+            if (!(ratio > 0 && ratio <= 1)) {
+                throw new IllegalArgumentException("Tombstone compaction ratio must be within (0, 1]: " + ratio);
+            }
+            this.tombstoneCompactionRatio = ratio;
+            return this;
+        }
+
+        @NotNull
+        public Builder memoryLimit(final long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Memory limit must be positive: " + bytes);
+            }
+            this.memoryLimit = bytes;
+            return this;
+        }
+
+        @NotNull
+        public Builder writeStallMillis(final long millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Write stall must not be negative: " + millis);
+            }
+            this.writeStallMillis = millis;
+            return this;
+        }
+
+        @NotNull
+        public Builder backgroundIo(@NotNull final BackgroundIo io) {
+            this.backgroundIo = io;
+            return this;
+        }
+
+        @NotNull
+        public Config build() {
+            return new Config(this);
+        }
+    }
+}
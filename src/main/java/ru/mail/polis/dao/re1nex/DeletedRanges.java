@@ -0,0 +1,116 @@
+package ru.mail.polis.dao.re1nex;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable union of {@link RangeTombstone}s kept as disjoint ranges, so a key is checked in O(log n).
+ */
+final class DeletedRanges {
+    static final DeletedRanges EMPTY = new DeletedRanges(new TreeMap<>());
+
+    // Disjoint ranges: from -> to
+    @NotNull
+    private final NavigableMap<ByteBuffer, ByteBuffer> ranges;
+
+    private DeletedRanges(@NotNull final NavigableMap<ByteBuffer, ByteBuffer> ranges) {
+        this.ranges = ranges;
+    }
+
+    @NotNull
+    static DeletedRanges of(@NotNull final Collection<RangeTombstone> tombstones) {
+        return EMPTY.with(tombstones);
+    }
+
+    /**
+     * @return union of these ranges and the tombstones
+     */
+    @NotNull
+    DeletedRanges with(@NotNull final Collection<RangeTombstone> tombstones) {
+        if (tombstones.isEmpty()) {
+            return this;
+        }
+        final List<RangeTombstone> sorted = new ArrayList<>(tombstones.size() + ranges.size());
+        sorted.addAll(tombstones);
+        sorted.addAll(tombstones());
+        sorted.sort(Comparator.comparing(tombstone -> tombstone.from));
+
+        final NavigableMap<ByteBuffer, ByteBuffer> merged = new TreeMap<>();
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final RangeTombstone tombstone : sorted) {
+            if (to != null && tombstone.from.compareTo(to) <= 0) {
+                if (tombstone.to.compareTo(to) > 0) {
+                    to = tombstone.to;
+                }
+                continue;
+            }
+            if (from != null) {
+                merged.put(from, to);
+            }
+            from = tombstone.from;
+            to = tombstone.to;
+        }
+        merged.put(from, to);
+        return new DeletedRanges(merged);
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    boolean covers(@NotNull final ByteBuffer key) {
+        final Map.Entry<ByteBuffer, ByteBuffer> range = ranges.floorEntry(key);
+        return range != null && key.compareTo(range.getValue()) < 0;
+    }
+
+    /**
+     * @return the cells not covered by the ranges
+     */
+    @NotNull
+    Iterator<Cell> filter(@NotNull final Iterator<Cell> cells) {
+        if (ranges.isEmpty()) {
+            return cells;
+        }
+        return Iterators.filter(cells, cell -> !covers(cell.getKey()));
+    }
+
+    /**
+     * @return the disjoint ranges in ascending order
+     */
+    @NotNull
+    List<RangeTombstone> tombstones() {
+        return clip(ByteBuffer.allocate(0), null);
+    }
+
+    /**
+     * @param lower the smallest key to keep
+     * @param upper the key to keep the keys below, {@code null} keeps all of them
+     * @return the disjoint ranges cut to the given bounds in ascending order
+     */
+    @NotNull
+    List<RangeTombstone> clip(
+            @NotNull final ByteBuffer lower,
+            @Nullable final ByteBuffer upper) {
+        final List<RangeTombstone> result = new ArrayList<>();
+        for (final Map.Entry<ByteBuffer, ByteBuffer> range : ranges.entrySet()) {
+            final ByteBuffer from = range.getKey().compareTo(lower) < 0 ? lower : range.getKey();
+            final ByteBuffer to = upper != null && range.getValue().compareTo(upper) > 0 ? upper : range.getValue();
+            if (from.compareTo(to) < 0) {
+                result.add(new RangeTombstone(from, to, 0));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,282 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Opens the files of flushes and compactions either through the page cache or bypassing it.
+ * <p>
+ * Direct I/O transfers whole aligned blocks of the file from and to aligned buffers,
+ * so an {@link Output} buffers the writes and pads the tail of the file cutting it off afterwards,
+ * while an {@link Input} reads through an aligned window.
+ * The open option is looked up reflectively, since it is not a part of the standard API.
+ */
+final class DirectIo {
+    static final DirectIo BUFFERED = new DirectIo(0);
+
+    private static final Logger log = LoggerFactory.getLogger(DirectIo.class);
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final String PROBE_SUFFIX = ".probe";
+    @Nullable
+    private static final OpenOption DIRECT = lookup();
+
+    // Zero for buffered I/O
+    private final int alignment;
+
+    private DirectIo(final int alignment) {
+        this.alignment = alignment;
+    }
+
+    /**
+     * Probes whether the file system of the storage supports direct I/O if it is requested.
+     */
+    @NotNull
+    static DirectIo of(
+            @NotNull final File storage,
+            @NotNull final BackgroundIo mode) {
+        if (mode == BackgroundIo.BUFFERED) {
+            return BUFFERED;
+        }
+        if (DIRECT == null) {
+            log.warn("Direct I/O is not available, falling back to buffered I/O");
+            return BUFFERED;
+        }
+
+        Path probe = null;
+        try {
+            probe = Files.createTempFile(storage.toPath(), "direct", PROBE_SUFFIX);
+            final int alignment = Math.toIntExact(Files.getFileStore(probe).getBlockSize());
+            try (FileChannel channel = FileChannel.open(probe, StandardOpenOption.WRITE, DIRECT)) {
+                channel.write(aligned(alignment, alignment));
+            }
+            return new DirectIo(alignment);
+        } catch (IOException | UnsupportedOperationException | ArithmeticException e) {
+            log.warn("Direct I/O is not supported in {}, falling back to buffered I/O", storage, e);
+            return BUFFERED;
+        } finally {
+            if (probe != null) {
+                try {
+                    Files.deleteIfExists(probe);
+                } catch (IOException e) {
+                    log.warn("Can't remove {}", probe, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the files bypass the page cache
+     */
+    boolean isEnabled() {
+        return alignment > 0;
+    }
+
+    /**
+     * Opens the file for sequential writes.
+     */
+    @NotNull
+    Output output(
+            @NotNull final Path file,
+            @NotNull final OpenOption... options) throws IOException {
+        if (!isEnabled()) {
+            return new Output(FileChannel.open(file, options), null, 0);
+        }
+        final OpenOption[] direct = Arrays.copyOf(options, options.length + 1);
+        direct[options.length] = DIRECT;
+        return new Output(FileChannel.open(file, direct), aligned(bufferSize(), alignment), alignment);
+    }
+
+    /**
+     * Opens the file for reads bypassing the page cache, requires direct I/O to be enabled.
+     */
+    @NotNull
+    Input input(@NotNull final Path file) throws IOException {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Direct I/O is disabled");
+        }
+        return new Input(
+                FileChannel.open(file, StandardOpenOption.READ, DIRECT),
+                aligned(bufferSize(), alignment),
+                alignment);
+    }
+
+    private int bufferSize() {
+        return Math.max(alignment, BUFFER_SIZE - BUFFER_SIZE % alignment);
+    }
+
+    @NotNull
+    private static ByteBuffer aligned(
+            final int size,
+            final int alignment) {
+        return ByteBuffer.allocateDirect(size + alignment)
+                .alignedSlice(alignment)
+                .limit(size);
+    }
+
+    @Nullable
+    private static OpenOption lookup() {
+        try {
+            return (OpenOption) Class.forName("com.sun.nio.file.ExtendedOpenOption")
+                    .getField("DIRECT")
+                    .get(null);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sequential writer of a file, nothing is to be written after it is completed.
+     */
+    static final class Output implements WritableByteChannel {
+        @NotNull
+        private final FileChannel channel;
+        // Present under direct I/O only
+        @Nullable
+        private final ByteBuffer buffer;
+        private final int alignment;
+        private long size;
+
+        private Output(
+                @NotNull final FileChannel channel,
+                @Nullable final ByteBuffer buffer,
+                final int alignment) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.alignment = alignment;
+        }
+
+        @Override
+        public int write(@NotNull final ByteBuffer src) throws IOException {
+            final int written = src.remaining();
+            if (buffer == null) {
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            } else {
+                while (src.hasRemaining()) {
+                    final int chunk = Math.min(src.remaining(), buffer.remaining());
+                    buffer.put(src.duplicate().limit(src.position() + chunk));
+                    src.position(src.position() + chunk);
+                    if (!buffer.hasRemaining()) {
+                        drain();
+                    }
+                }
+            }
+            size += written;
+            return written;
+        }
+
+        /**
+         * Writes out the buffered tail and forces the file to the disk.
+         */
+        void complete() throws IOException {
+            if (buffer != null && buffer.position() > 0) {
+                // Padded to the alignment and cut off
+                while (buffer.position() % alignment != 0) {
+                    buffer.put((byte) 0);
+                }
+                drain();
+                channel.truncate(size);
+            }
+            channel.force(false);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void drain() throws IOException {
+            assert buffer != null;
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reader of a file bypassing the page cache, efficient for ascending reads.
+     */
+    static final class Input implements Closeable {
+        @NotNull
+        private final FileChannel channel;
+        // Aligned region of the file starting at the window position
+        @NotNull
+        private final ByteBuffer window;
+        private final int alignment;
+        private long windowPosition = -1;
+
+        private Input(
+                @NotNull final FileChannel channel,
+                @NotNull final ByteBuffer window,
+                final int alignment) {
+            this.channel = channel;
+            this.window = window.limit(0);
+            this.alignment = alignment;
+        }
+
+        /**
+         * @return heap copy of the file region, which outlives the next reads
+         */
+        @NotNull
+        ByteBuffer read(
+                final long position,
+                final int size) throws IOException {
+            final ByteBuffer result = ByteBuffer.allocate(size);
+            long current = position;
+            while (result.hasRemaining()) {
+                if (current < windowPosition || current >= windowPosition + window.limit()) {
+                    fill(current);
+                }
+                final int offset = (int) (current - windowPosition);
+                final int chunk = Math.min(result.remaining(), window.limit() - offset);
+                result.put(window.duplicate().position(offset).limit(offset + chunk));
+                current += chunk;
+            }
+            return result.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void fill(final long position) throws IOException {
+            windowPosition = position - position % alignment;
+            window.clear();
+            while (window.hasRemaining()) {
+                final int read = channel.read(window, windowPosition + window.position());
+                // A short read reaches the end of the file
+                if (read <= 0 || window.position() % alignment != 0) {
+                    break;
+                }
+            }
+            window.flip();
+            if (windowPosition + window.limit() <= position) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Naming of the storage files: {@code <generation><suffix>}.
+ */
+final class FileNames {
+    private FileNames() {
+        // Not instantiable
+    }
+
+    /**
+     * @return generation encoded in the file name or -1 if the name does not match
+     */
+    static long generationOf(
+            @NotNull final String fileName,
+            @NotNull final String suffix) {
+        if (!fileName.endsWith(suffix)) {
+            return -1;
+        }
+        final String generation = fileName.substring(0, fileName.length() - suffix.length());
+        if (generation.isEmpty() || !generation.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(generation);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Leveled compaction strategy.
+ * <p>
+ * Flushed tables land in the overlapping level 0. Once it gathers enough tables,
+ * they are merged with the overlapping level 1 tables. Every deeper level consists of non-overlapping tables
+ * of the target size and may hold {@link #LEVEL_SIZE_RATIO} times more data than the previous one.
+ * An overflowing level pushes its oldest table down to the next level.
+ * So a lookup touches level 0 tables and at most one table per deeper level.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    static final int LEVEL_SIZE_RATIO = 10;
+
+    private final int levelZeroTables;
+    private final long targetTableSize;
+
+    /**
+     * @param levelZeroTables number of level 0 tables triggering their compaction to level 1
+     * @param targetTableSize size of level 1 and deeper tables
+     */
+    LeveledCompaction(
+            final int levelZeroTables,
+            final long targetTableSize) {
+        this.levelZeroTables = levelZeroTables;
+        this.targetTableSize = targetTableSize;
+    }
+
+    @Nullable
+    @Override
+    public Compaction select(@NotNull final List<SSTable> freshestFirst) {
+        final List<List<SSTable>> levels = levels(freshestFirst);
+
+        if (levels.get(0).size() >= levelZeroTables) {
+            return pushDown(levels.get(0), levels, 0);
+        }
+
+        long maxBytes = targetTableSize * LEVEL_SIZE_RATIO;
+        for (int level = 1; level < levels.size(); level++) {
+            final List<SSTable> tables = levels.get(level);
+            long bytes = 0;
+            for (final SSTable table : tables) {
+                bytes += table.sizeInBytes();
+            }
+            if (bytes > maxBytes) {
+                // The one waiting for the longest time, which spreads the compactions over the key space
+                final SSTable oldest = tables.stream()
+                        .min(Comparator.comparingLong(SSTable::generation))
+                        .orElseThrow();
+                return pushDown(List.of(oldest), levels, level);
+            }
+            maxBytes *= LEVEL_SIZE_RATIO;
+        }
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public Compaction major(@NotNull final List<SSTable> freshestFirst) {
+        if (freshestFirst.size() < 2) {
+            return null;
+        }
+        final int bottom = Math.max(1, freshestFirst.get(freshestFirst.size() - 1).level());
+        return new Compaction(freshestFirst, bottom);
+    }
+
+    /**
+     * Pushes the table down a level, level 0 tables go down all together to keep their order of freshness.
+     */
+    @NotNull
+    @Override
+    public Compaction purge(
+            @NotNull final List<SSTable> freshestFirst,
+            @NotNull final SSTable table) {
+        final List<List<SSTable>> levels = levels(freshestFirst);
+        if (table.level() == 0) {
+            return pushDown(levels.get(0), levels, 0);
+        }
+        return pushDown(List.of(table), levels, table.level());
+    }
+
+    /**
+     * @return the tables merged with the overlapping tables of the next level
+     */
+    @NotNull
+    private static Compaction pushDown(
+            @NotNull final List<SSTable> tables,
+            @NotNull final List<List<SSTable>> levels,
+            final int level) {
+        final Compaction range = new Compaction(tables, level + 1);
+        if (level + 1 == levels.size()) {
+            return range;
+        }
+
+        final List<SSTable> inputs = new ArrayList<>(tables);
+        for (final SSTable table : levels.get(level + 1)) {
+            if (range.overlaps(table)) {
+                inputs.add(table);
+            }
+        }
+        return new Compaction(inputs, level + 1);
+    }
+
+    /**
+     * @return tables grouped by level, level 0 is always present
+     */
+    @NotNull
+    private static List<List<SSTable>> levels(@NotNull final List<SSTable> freshestFirst) {
+        final List<List<SSTable>> levels = new ArrayList<>();
+        levels.add(new ArrayList<>());
+        for (final SSTable table : freshestFirst) {
+            while (levels.size() <= table.level()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(table.level()).add(table);
+        }
+        return levels;
+    }
+}
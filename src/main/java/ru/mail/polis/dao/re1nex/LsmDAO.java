@@ -0,0 +1,1035 @@
+package ru.mail.polis.dao.re1nex;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.Iters;
+import ru.mail.polis.dao.WriteBatch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Log-structured merge tree {@link DAO} implementation.
+ * <p>
+ * Writes go to the {@link WriteAheadLog} and then to the lock-free {@link MemTable}.
+ * Full MemTable is frozen into the flush queue and persisted to a new {@link SSTable}
+ * by a dedicated flusher thread, writers are stalled only while the queue is full.
+ * The MemTables are charged to the {@link MemoryBudget} shared with the block cache and the service:
+ * writers are stalled flushing the active MemTable early while the budget is exhausted and rejected
+ * unless it is freed in time, so a burst of writes meets backpressure instead of running the process out of memory.
+ * Reads merge the active, the frozen and the on-disk tables, the freshest generation wins.
+ * Writes are numbered by the {@link Sequencer}, so a {@link Snapshot} reads a consistent point in time
+ * retaining its SSTables, while plain reads see the latest writes.
+ * Logs of the MemTables lost in a crash are replayed into SSTables on startup,
+ * the SSTables themselves are opened in parallel and load their Bloom filters lazily.
+ * The {@link Manifest} defines the live SSTables and logs: flushes and compactions take effect once recorded there,
+ * so the files left behind by the interrupted ones are simply removed on startup.
+ * A compactor thread merges SSTables in the background as the configured {@link CompactionStrategy} decides.
+ * Flushes and compactions may bypass the page cache with {@link BackgroundIo#DIRECT},
+ * so that the merges do not evict the working set of the reads served from the mapped tables.
+ * Large values may be separated to the {@link ValueLog}, then the compactor also rewrites the SSTables
+ * referencing mostly unreferenced segments to reclaim their space.
+ */
+public final class LsmDAO implements DAO {
+    private static final Logger log = LoggerFactory.getLogger(LsmDAO.class);
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    // Opening a table is a few small reads, so it pays to issue them concurrently
+    private static final int LOADER_THREADS = 8;
+
+    @NotNull
+    private final File storage;
+    @NotNull
+    private final Config config;
+    @NotNull
+    private final AtomicReference<TableSet> tables;
+    // Free slots in the flush queue
+    @NotNull
+    private final Semaphore flushPermits;
+    // Serializes MemTable switches
+    private final Object freezeLock = new Object();
+    @NotNull
+    private final ExecutorService flusher;
+    // The only thread removing SSTables
+    @NotNull
+    private final ExecutorService compactor;
+    @NotNull
+    private final CompactionStrategy compactionStrategy;
+    // Next MemTable generation, SSTable file id or value log segment id
+    @NotNull
+    private final AtomicLong generations;
+    // Shared by the flusher and the compactor, flushes go first
+    @NotNull
+    private final WriteRateLimiter writeRateLimiter;
+    @NotNull
+    private final MemoryBudget memoryBudget;
+    @NotNull
+    private final BlockCache blockCache;
+    @NotNull
+    private final ValueLog valueLog;
+    // Flushes and compactions write and read through
+    @NotNull
+    private final DirectIo directIo;
+    // Defines the live tables and logs
+    @NotNull
+    private final Manifest manifest;
+    @NotNull
+    private final Sequencer sequencer = new Sequencer();
+    // Coalesces background compaction requests
+    @NotNull
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    // Present under SyncPolicy.PERIODIC only
+    @Nullable
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * Opens the storage located in the given directory.
+     *
+     * @param storage data directory
+     * @param config  storage settings
+     */
+    public LsmDAO(
+            @NotNull final File storage,
+            @NotNull final Config config) throws IOException {
+        this.storage = storage;
+        this.config = config;
+        this.writeRateLimiter = new WriteRateLimiter(config.getWriteRateLimit());
+        // Blocks are a bit larger than the block size
+        this.memoryBudget = new MemoryBudget(config.getMemoryLimit());
+        this.blockCache = new BlockCache(config.getBlockCacheSize(), config.getBlockSize() * 3 / 2, memoryBudget);
+        this.directIo = DirectIo.of(storage, config.getBackgroundIo());
+        this.valueLog = new ValueLog(storage, directIo);
+
+        this.manifest = Manifest.open(storage);
+        final NavigableMap<Long, Long> liveTables = manifest.tables();
+        final SortedSet<Long> liveLogs = manifest.logs();
+
+        // Whatever the manifest does not know of is left by an interrupted flush or compaction
+        final Set<Long> segments = new HashSet<>();
+        long maxId = Math.max(
+                liveTables.isEmpty() ? -1 : liveTables.lastKey(),
+                liveLogs.isEmpty() ? -1 : liveLogs.last());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(storage.toPath())) {
+            for (final Path file : files) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+
+                final String name = file.getFileName().toString();
+                if (SSTable.isTemporary(name)) {
+                    log.warn("Removing incomplete table {}", file);
+                    Files.delete(file);
+                    continue;
+                }
+
+                final long logGeneration = WriteAheadLog.generationOf(name);
+                if (logGeneration >= 0) {
+                    maxId = Math.max(maxId, logGeneration);
+                    if (!liveLogs.contains(logGeneration)) {
+                        log.warn("Removing log {} of a flushed MemTable", file);
+                        Files.delete(file);
+                    }
+                    continue;
+                }
+
+                final long segment = ValueLog.segmentOf(name);
+                if (segment >= 0) {
+                    segments.add(segment);
+                    maxId = Math.max(maxId, segment);
+                    continue;
+                }
+
+                final long fileId = SSTable.fileIdOf(name);
+                if (fileId >= 0) {
+                    maxId = Math.max(maxId, fileId);
+                    if (!liveTables.containsKey(fileId)) {
+                        log.warn("Removing table {} missing from the manifest", file);
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+        // Tables map the value log segments they reference
+        final NavigableMap<Long, SSTable> ssTables = openTables(liveTables);
+        valueLog.removeUnreferenced(segments, ssTables.values());
+        for (final long generation : liveTables.values()) {
+            maxId = Math.max(maxId, generation);
+        }
+        this.generations = new AtomicLong(maxId + 1);
+
+        // Restore the MemTables which were not flushed before the shutdown
+        for (final long generation : liveLogs) {
+            final File logFile = new File(storage, WriteAheadLog.fileName(generation));
+            final MemTable restored = new MemTable(generation);
+            // The log may not have been created yet
+            if (logFile.exists()) {
+                WriteAheadLog.replay(logFile, restored);
+            }
+            final Manifest.Edit edit = new Manifest.Edit().removeLog(generation);
+            if (!restored.isEmpty()) {
+                log.info("Restored MemTable {} from the log", generation);
+                final SSTable table = writeTable(restored);
+                ssTables.put(generation, table);
+                edit.addTable(table.fileId(), generation);
+            }
+            manifest.apply(edit);
+            Files.deleteIfExists(logFile.toPath());
+        }
+
+        this.tables = new AtomicReference<>(TableSet.of(newMemTable(generations.getAndIncrement()), ssTables));
+        this.flushPermits = new Semaphore(config.getFlushQueueSize());
+        this.flusher = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("flusher-%d").build());
+        this.compactor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("compactor-%d").build());
+        this.compactionStrategy = config.getCompactionStyle() == CompactionStyle.LEVELED
+                ? new LeveledCompaction(config.getCompactionThreshold(), config.getTargetTableSize())
+                : new SizeTieredCompaction(config.getCompactionThreshold());
+        if (config.getSyncPolicy() == SyncPolicy.PERIODIC) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("log-syncer-%d").setDaemon(true).build());
+            syncer.scheduleWithFixedDelay(
+                    this::syncLogs,
+                    config.getSyncIntervalMillis(),
+                    config.getSyncIntervalMillis(),
+                    TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Sees the writes applied so far with no isolation from the concurrent ones,
+     * see {@link #snapshot()} for consistent scans.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return tables.get().iterator(from, Sequencer.LATEST, System.currentTimeMillis());
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final Value value = tables.get().get(key, Sequencer.LATEST);
+        if (value == null || !value.isAlive(System.currentTimeMillis())) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value.getData();
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) throws IOException {
+        upsert(key, value, Value.NEVER);
+    }
+
+    /**
+     * Stores the value along with its expiration time, expired values are skipped by reads
+     * and purged by compactions.
+     */
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            @NotNull final Duration ttl) throws IOException {
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+        }
+        final long now = System.currentTimeMillis();
+        // Saturated rather than overflown
+        final boolean finite = ttl.compareTo(Duration.ofMillis(Value.NEVER - now)) < 0;
+        upsert(key, value, finite ? now + ttl.toMillis() : Value.NEVER);
+    }
+
+    private void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long expiresAt) throws IOException {
+        apply(key.remaining() + value.remaining(), memTable -> memTable.upsert(key, value, expiresAt));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        apply(key.remaining(), memTable -> memTable.remove(key));
+    }
+
+    /**
+     * Stores a single range tombstone, the removed records are purged by compactions.
+     */
+    @Override
+    public void removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        if (from.compareTo(to) >= 0) {
+            return;
+        }
+        apply(from.remaining() + to.remaining(), memTable -> memTable.removeRange(from, to));
+    }
+
+    /**
+     * Applies the batch to a single MemTable with a single log record and a single range of sequence numbers,
+     * so snapshots and recovery see either all of its writes or none of them.
+     */
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        apply(batch.sizeInBytes(), memTable -> memTable.write(batch));
+    }
+
+    /**
+     * Flushes the active MemTable and merges as many SSTables as the strategy allows dropping tombstones,
+     * then reclaims the garbage value log segments. Returns when the compaction is complete.
+     */
+    @Override
+    public void compact() throws IOException {
+        final MemTable memTable = tables.get().memTable;
+        if (!memTable.isEmpty()) {
+            scheduleFlush(memTable);
+        }
+        // The flusher executes tasks in order, so the flush above is over once the barrier is passed
+        await(flusher.submit(() -> {
+            // Barrier
+        }));
+        await(compactor.submit(() -> {
+            final Compaction compaction = compactionStrategy.major(tables.get().freshestFirst);
+            if (compaction != null) {
+                compact(compaction);
+            }
+            collectExpired();
+            collectTombstones();
+            collectValueLog();
+            return null;
+        }));
+    }
+
+    /**
+     * Takes a consistent point-in-time view of the storage, which must be closed after use.
+     */
+    @NotNull
+    public Snapshot snapshot() throws IOException {
+        // The MemTables keep the versions the snapshot sees from now on
+        final long registered = sequencer.register();
+        while (true) {
+            final TableSet current = tables.get();
+            final long sequence = sequencer.visible();
+            // The writes up to the sequence number are in the tables of the set current meanwhile
+            // and none of the later ones are in its SSTables, because MemTables are flushed once sealed
+            if (tables.get() == current && current.retain()) {
+                return new Snapshot(current, sequence, sequencer, registered);
+            }
+        }
+    }
+
+    /**
+     * Reads all the SSTables verifying the checksums of every block and separated value using all the cores.
+     * The tables are not compacted meanwhile.
+     *
+     * @return files of the corrupted tables, empty if all the tables are intact
+     */
+    @NotNull
+    public List<File> verify() throws IOException {
+        return await(compactor.submit(() -> verify(tables.get().freshestFirst)));
+    }
+
+    /**
+     * Limits the disk write rate of flushes and compactions, flushes are served first.
+     *
+     * @param bytesPerSecond new rate, zero disables the limit
+     */
+    public void setWriteRateLimit(final long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Write rate limit must not be negative: " + bytesPerSecond);
+        }
+        writeRateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * @return current disk write rate limit in bytes per second, zero if unlimited
+     */
+    public long getWriteRateLimit() {
+        return writeRateLimiter.getRate();
+    }
+
+    /**
+     * @return memory shared by the MemTables, the block cache and the requests in flight
+     */
+    @NotNull
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return number of block reads served by the block cache
+     */
+    public long getBlockCacheHits() {
+        return blockCache.hits();
+    }
+
+    /**
+     * @return number of block reads which missed the block cache and went to the disk
+     */
+    public long getBlockCacheMisses() {
+        return blockCache.misses();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            // Not interrupting, an interrupt would close the log channel being forced
+            syncer.shutdown();
+            try {
+                while (!syncer.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("Still waiting for the syncer to finish");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while syncing");
+            }
+        }
+
+        final MemTable last = tables.get().memTable;
+        if (!last.isEmpty()) {
+            scheduleFlush(last);
+        }
+
+        flusher.shutdown();
+        try {
+            while (!flusher.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Still waiting for the flusher to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing");
+        }
+
+        // The flusher has finished, so nobody schedules compactions anymore
+        compactor.shutdown();
+        try {
+            while (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Still waiting for the compactor to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compacting");
+        }
+
+        // Retry whatever the flusher has failed to persist
+        for (final MemTable frozen : tables.get().flushing) {
+            frozen.seal();
+            final SSTable ssTable = writeTable(frozen);
+            manifest.apply(new Manifest.Edit()
+                    .addTable(ssTable.fileId(), ssTable.generation())
+                    .removeLog(frozen.generation()));
+            frozen.discardLog();
+            tables.updateAndGet(current -> current.flushed(frozen, ssTable));
+            memoryBudget.release(MemoryBudget.Pool.MEM_TABLES, frozen.charged());
+        }
+
+        final TableSet closed = tables.get();
+        // The active MemTable is empty here, so its log is of no use
+        manifest.apply(new Manifest.Edit().removeLog(closed.memTable.generation()));
+        closed.memTable.discardLog();
+        for (final SSTable table : closed.ssTables.values()) {
+            table.close();
+        }
+        manifest.close();
+    }
+
+    /**
+     * Applies the write to the active MemTable charging its growth to the memory budget.
+     * A MemTable whose log has failed a write is flushed as is, so that the later writes go to a fresh log.
+     *
+     * @param bytes size of the keys and the values written
+     */
+    private void apply(
+            final long bytes,
+            @NotNull final MemTableWrite write) throws IOException {
+        admit(bytes);
+        final MemTable memTable = acquireMemTable();
+        try {
+            try {
+                write.apply(memTable);
+                // Charged before the writer leaves, so the flush releases the whole charge
+                memoryBudget.charge(MemoryBudget.Pool.MEM_TABLES, memTable.takeGrowth());
+            } finally {
+                memTable.release();
+            }
+        } catch (IOException e) {
+            if (memTable.isLogBroken()) {
+                log.error("Log of MemTable {} has failed, switching to a fresh one", memTable.generation(), e);
+                try {
+                    scheduleFlush(memTable);
+                } catch (IOException flushError) {
+                    e.addSuppressed(flushError);
+                }
+            }
+            throw e;
+        }
+        flushIfFull(memTable);
+    }
+
+    /**
+     * Stalls the writer until the memory budget has room for the write.
+     *
+     * @throws MemoryLimitException if the room has not been made in time
+     */
+    private void admit(final long bytes) throws IOException {
+        if (memoryBudget.hasRoom(bytes)) {
+            return;
+        }
+        if (bytes > memoryBudget.getLimit()) {
+            throw new MemoryLimitException("Write of " + bytes + " bytes exceeds the memory limit");
+        }
+        // The cached blocks are the cheapest to give up
+        if (blockCache.shrink(() -> memoryBudget.hasRoom(bytes))) {
+            return;
+        }
+
+        // Only the flushes free the MemTables, so do not wait for the active one to fill up
+        final MemTable memTable = tables.get().memTable;
+        if (!memTable.isEmpty()) {
+            scheduleFlush(memTable);
+        }
+        try {
+            if (!memoryBudget.awaitRoom(bytes, config.getWriteStallMillis())) {
+                throw new MemoryLimitException(
+                        "Write rejected, " + memoryBudget.getUsed() + " of " + memoryBudget.getLimit()
+                                + " bytes of memory are still in use after " + config.getWriteStallMillis() + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory");
+        }
+    }
+
+    @NotNull
+    private MemTable acquireMemTable() {
+        while (true) {
+            final MemTable memTable = tables.get().memTable;
+            if (memTable.tryAcquire()) {
+                return memTable;
+            }
+            // The table is being frozen, the fresh one is about to be published
+            Thread.onSpinWait();
+        }
+    }
+
+    private void flushIfFull(@NotNull final MemTable memTable) throws IOException {
+        if (memTable.sizeInBytes() >= config.getFlushThreshold() && tables.get().memTable == memTable) {
+            scheduleFlush(memTable);
+        }
+    }
+
+    /**
+     * Freezes the MemTable unless somebody has done it already and hands it over to the flusher.
+     * Blocks while the flush queue is full.
+     */
+    private void scheduleFlush(@NotNull final MemTable memTable) throws IOException {
+        try {
+            flushPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the flush queue");
+        }
+
+        synchronized (freezeLock) {
+            if (tables.get().memTable != memTable) {
+                flushPermits.release();
+                return;
+            }
+
+            final MemTable fresh;
+            try {
+                fresh = newMemTable(generations.getAndIncrement());
+            } catch (IOException e) {
+                flushPermits.release();
+                throw e;
+            }
+            tables.updateAndGet(current -> current.freeze(fresh));
+        }
+
+        flusher.execute(() -> {
+            try {
+                memTable.seal();
+                final SSTable ssTable = writeTable(memTable);
+                manifest.apply(new Manifest.Edit()
+                        .addTable(ssTable.fileId(), ssTable.generation())
+                        .removeLog(memTable.generation()));
+                memTable.discardLog();
+                tables.updateAndGet(current -> current.flushed(memTable, ssTable));
+                memoryBudget.release(MemoryBudget.Pool.MEM_TABLES, memTable.charged());
+                scheduleCompaction();
+            } catch (IOException e) {
+                // The table stays readable in the flush queue and is retried on close
+                log.error("Can't flush MemTable {}", memTable.generation(), e);
+            } finally {
+                flushPermits.release();
+            }
+        });
+    }
+
+    @NotNull
+    private MemTable newMemTable(final long generation) throws IOException {
+        // The log is replayed on startup as long as the manifest knows of it
+        manifest.apply(new Manifest.Edit().addLog(generation));
+        return new MemTable(
+                generation,
+                WriteAheadLog.create(storage, generation, config.getSyncPolicy(), sequencer),
+                sequencer);
+    }
+
+    private void syncLogs() {
+        final TableSet snapshot = tables.get();
+        try {
+            snapshot.memTable.sync();
+            for (final MemTable frozen : snapshot.flushing) {
+                frozen.sync();
+            }
+        } catch (IOException e) {
+            log.error("Can't sync logs", e);
+        }
+    }
+
+    @NotNull
+    private SSTable writeTable(@NotNull final MemTable memTable) throws IOException {
+        final long generation = memTable.generation();
+        return writeTable(
+                memTable.iterator(EMPTY),
+                () -> DeletedRanges.of(memTable.rangeTombstones(Sequencer.LATEST)).tombstones(),
+                generation,
+                generation,
+                0,
+                System.currentTimeMillis(),
+                Set.of(),
+                writeRateLimiter.throttle(WriteRateLimiter.Priority.FLUSH));
+    }
+
+    /**
+     * Writes the cells to the SSTable file with the given id separating the large values.
+     *
+     * @param ranges    range tombstones requested once the cells are written
+     * @param writtenAt epoch millis the freshest cell was written at
+     * @param relocated value log segments whose values are moved to a fresh segment
+     */
+    @NotNull
+    private SSTable writeTable(
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final Supplier<List<RangeTombstone>> ranges,
+            final long fileId,
+            final long generation,
+            final int level,
+            final long writtenAt,
+            @NotNull final Set<Long> relocated,
+            @NotNull final WriteRateLimiter.Throttle throttle) throws IOException {
+        final File file = SSTable.file(storage, fileId);
+        try (ValueLog.Writer separated = valueLog.writer(
+                cells,
+                config.getValueLogThreshold(),
+                relocated,
+                generations::getAndIncrement,
+                throttle)) {
+            SSTable.write(file, separated, ranges, level, writtenAt, config, directIo, throttle);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return openTable(fileId, generation);
+    }
+
+    @NotNull
+    private SSTable openTable(
+            final long fileId,
+            final long generation) throws IOException {
+        return SSTable.open(
+                storage,
+                fileId,
+                generation,
+                blockCache,
+                valueLog,
+                config.getChecksumVerification() == ChecksumVerification.ALWAYS);
+    }
+
+    /**
+     * Lets the compactor merge tiers while there are any worth merging.
+     */
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        compactor.execute(() -> {
+            compactionScheduled.set(false);
+            try {
+                Compaction compaction;
+                while ((compaction = compactionStrategy.select(tables.get().freshestFirst)) != null) {
+                    compact(compaction);
+                }
+                collectExpired();
+                collectTombstones();
+                collectValueLog();
+            } catch (Throwable e) {
+                // Nobody else would report it, the executor just replaces the thread
+                log.error("Background compaction failed", e);
+            }
+        });
+    }
+
+    /**
+     * Rewrites the SSTables holding expired values one by one, so the values are purged
+     * even if the tables are not due to be merged.
+     */
+    private void collectExpired() throws IOException {
+        while (true) {
+            final long now = System.currentTimeMillis();
+            final SSTable victim = tables.get().freshestFirst.stream()
+                    .filter(table -> table.expiresAt() <= now)
+                    .findFirst()
+                    .orElse(null);
+            if (victim == null) {
+                return;
+            }
+            compact(new Compaction(List.of(victim), victim.level()));
+        }
+    }
+
+    /**
+     * Merges the SSTables mostly made of tombstones past the grace period with the staler tables
+     * until the tombstones reach the bottom and go away, so scans do not have to skip them.
+     */
+    private void collectTombstones() throws IOException {
+        while (true) {
+            final List<SSTable> live = tables.get().freshestFirst;
+            final long graceEnd = System.currentTimeMillis() - config.getGcGraceMillis();
+            Compaction purge = null;
+            for (final SSTable table : live) {
+                if (table.writtenAt() > graceEnd || table.tombstoneRatio() < config.getTombstoneCompactionRatio()) {
+                    continue;
+                }
+                final Compaction candidate = compactionStrategy.purge(live, table);
+                // Either drops the tombstones or moves them deeper, so the loop ends
+                if (candidate.isBottom(live) || candidate.level() > table.level()) {
+                    purge = candidate;
+                    break;
+                }
+            }
+            if (purge == null) {
+                return;
+            }
+            compact(purge);
+        }
+    }
+
+    /**
+     * Rewrites the SSTables referencing garbage value log segments one by one until there are no such segments.
+     */
+    private void collectValueLog() throws IOException {
+        while (true) {
+            final List<SSTable> live = tables.get().freshestFirst;
+            final Set<Long> garbage = valueLog.garbage(live, config.getValueLogGarbageRatio());
+            final SSTable victim = live.stream()
+                    .filter(table -> !Collections.disjoint(table.valueLogBytes().keySet(), garbage))
+                    .findFirst()
+                    .orElse(null);
+            if (victim == null) {
+                return;
+            }
+            compact(new Compaction(List.of(victim), victim.level()));
+        }
+    }
+
+    /**
+     * Merges the SSTables chosen by the strategy, must be called by the compactor only.
+     * The records shadowed by the range tombstones of the fresher inputs are purged.
+     * Expired values are turned into tombstones.
+     * Tombstones, range ones included, are dropped if there is no staler table left for them to shadow
+     * and the grace period of the inputs is over.
+     * Values of the garbage value log segments are relocated along the way.
+     */
+    private void compact(@NotNull final Compaction compaction) throws IOException {
+        final List<SSTable> inputs = compaction.inputs();
+        final List<DirectIo.Input> direct = new ArrayList<>();
+        try {
+            final List<Iterator<Cell>> sources = new ArrayList<>(inputs.size());
+            DeletedRanges fresher = DeletedRanges.EMPTY;
+            for (final SSTable table : inputs) {
+                // Corruption must not spread to the results
+                if (directIo.isEnabled()) {
+                    final DirectIo.Input input = directIo.input(SSTable.file(storage, table.fileId()).toPath());
+                    direct.add(input);
+                    sources.add(fresher.filter(table.iterator(input)));
+                } else {
+                    sources.add(fresher.filter(table.iterator(EMPTY, true)));
+                }
+                fresher = fresher.with(table.rangeTombstones());
+            }
+            merge(compaction, sources, fresher);
+        } finally {
+            for (final DirectIo.Input input : direct) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the merged inputs of the compaction and replaces the inputs with the results.
+     *
+     * @param sources cells of the inputs, freshest first
+     * @param fresher range tombstones of all the inputs
+     */
+    private void merge(
+            @NotNull final Compaction compaction,
+            @NotNull final List<Iterator<Cell>> sources,
+            @NotNull final DeletedRanges fresher) throws IOException {
+        final List<SSTable> inputs = compaction.inputs();
+        final long now = System.currentTimeMillis();
+        Iterator<Cell> merged = Iterators.transform(
+                Iters.mergeSorted(sources, Cell.COMPARATOR),
+                cell -> cell.getValue().isTombstone() || cell.getValue().isAlive(now)
+                        ? cell
+                        : new Cell(cell.getKey(), Value.tombstone()));
+        final List<SSTable> live = tables.get().freshestFirst;
+        long writtenAt = 0;
+        for (final SSTable table : inputs) {
+            writtenAt = Math.max(writtenAt, table.writtenAt());
+        }
+        final DeletedRanges deleted;
+        if (compaction.isBottom(live) && writtenAt <= now - config.getGcGraceMillis()) {
+            merged = Iterators.filter(merged, cell -> !cell.getValue().isTombstone());
+            deleted = DeletedRanges.EMPTY;
+        } else {
+            deleted = fresher;
+        }
+
+        final Set<Long> relocated = valueLog.garbage(live, config.getValueLogGarbageRatio());
+        final WriteRateLimiter.Throttle throttle = writeRateLimiter.throttle(WriteRateLimiter.Priority.COMPACTION);
+        final List<SSTable> results = new ArrayList<>();
+        if (compaction.level() == 0) {
+            // The result takes the place of the inputs in the order of freshness
+            results.add(writeTable(
+                    merged,
+                    deleted::tombstones,
+                    generations.getAndIncrement(),
+                    inputs.get(0).generation(),
+                    0,
+                    writtenAt,
+                    relocated,
+                    throttle));
+        } else {
+            // Every result takes the range tombstones up to the first key of the next one, so they do not overlap
+            final PeekingIterator<Cell> cells = Iterators.peekingIterator(merged);
+            ByteBuffer lower = EMPTY;
+            while (cells.hasNext() || results.isEmpty() && !deleted.isEmpty()) {
+                final ByteBuffer from = lower;
+                final long generation = generations.getAndIncrement();
+                results.add(writeTable(
+                        limit(cells, config.getTargetTableSize()),
+                        () -> deleted.clip(from, cells.hasNext() ? cells.peek().getKey() : null),
+                        generation,
+                        generation,
+                        compaction.level(),
+                        writtenAt,
+                        relocated,
+                        throttle));
+                if (cells.hasNext()) {
+                    lower = cells.peek().getKey();
+                }
+            }
+        }
+        // The inputs left behind by a crash are removed on startup
+        final Manifest.Edit edit = new Manifest.Edit();
+        for (final SSTable result : results) {
+            edit.addTable(result.fileId(), result.generation());
+        }
+        for (final SSTable input : inputs) {
+            edit.removeTable(input.fileId());
+        }
+        manifest.apply(edit);
+        tables.updateAndGet(current -> current.compacted(inputs, results));
+
+        // Snapshots may still read the inputs
+        for (final SSTable table : inputs) {
+            table.retire();
+        }
+        final Set<Long> referenced = new HashSet<>();
+        for (final SSTable table : inputs) {
+            referenced.addAll(table.valueLogBytes().keySet());
+        }
+        valueLog.removeUnreferenced(referenced, tables.get().ssTables.values());
+        log.info("Compacted {} tables into {} tables of level {}", inputs.size(), results.size(), compaction.level());
+    }
+
+    /**
+     * @return the leading cells of the given total size, but at least one
+     */
+    @NotNull
+    private static Iterator<Cell> limit(
+            @NotNull final Iterator<Cell> cells,
+            final long bytes) {
+        return new AbstractIterator<>() {
+            private long taken;
+
+            @Override
+            protected Cell computeNext() {
+                if (taken >= bytes || !cells.hasNext()) {
+                    return endOfData();
+                }
+                final Cell cell = cells.next();
+                taken += cell.getKey().remaining();
+                final Value value = cell.getValue();
+                if (value.getPointer() != null) {
+                    taken += ValueLog.Pointer.SIZE;
+                } else if (!value.isTombstone()) {
+                    taken += value.getData().remaining();
+                }
+                return cell;
+            }
+        };
+    }
+
+    /**
+     * Opens the tables in parallel, the opened ones are closed if any table fails to open.
+     *
+     * @param files table file id -> generation
+     * @return generation -> table
+     */
+    @NotNull
+    private NavigableMap<Long, SSTable> openTables(@NotNull final NavigableMap<Long, Long> files) throws IOException {
+        final ExecutorService loader = Executors.newFixedThreadPool(
+                LOADER_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("table-loader-%d").build());
+        try {
+            final Map<Long, Future<SSTable>> opening = new TreeMap<>();
+            for (final Map.Entry<Long, Long> file : files.entrySet()) {
+                final long fileId = file.getKey();
+                final long generation = file.getValue();
+                opening.put(generation, loader.submit(
+                        () -> openTable(fileId, generation)));
+            }
+
+            final NavigableMap<Long, SSTable> ssTables = new TreeMap<>();
+            IOException failure = null;
+            for (final Map.Entry<Long, Future<SSTable>> table : opening.entrySet()) {
+                try {
+                    ssTables.put(table.getKey(), table.getValue().get());
+                } catch (ExecutionException e) {
+                    final IOException cause = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause()
+                            : new IOException("Can't open table " + table.getKey(), e.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                }
+            }
+            if (failure != null) {
+                for (final SSTable table : ssTables.values()) {
+                    table.close();
+                }
+                throw failure;
+            }
+            return ssTables;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while opening tables");
+        } finally {
+            loader.shutdown();
+        }
+    }
+
+    /**
+     * @return files of the corrupted tables
+     */
+    @NotNull
+    private List<File> verify(@NotNull final List<SSTable> ssTables) throws InterruptedIOException {
+        final ExecutorService verifier = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setNameFormat("table-verifier-%d").build());
+        try {
+            final Map<SSTable, Future<?>> verifying = new LinkedHashMap<>();
+            for (final SSTable table : ssTables) {
+                verifying.put(table, verifier.submit(() -> {
+                    table.verify();
+                    return null;
+                }));
+            }
+
+            final List<File> corrupted = new ArrayList<>();
+            for (final Map.Entry<SSTable, Future<?>> table : verifying.entrySet()) {
+                try {
+                    table.getValue().get();
+                } catch (ExecutionException e) {
+                    final File file = SSTable.file(storage, table.getKey().fileId());
+                    log.error("Corrupted table {}", file, e.getCause());
+                    corrupted.add(file);
+                }
+            }
+            return corrupted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying tables");
+        } finally {
+            verifier.shutdown();
+        }
+    }
+
+    private static <T> T await(@NotNull final Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compacting");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compaction failed", e.getCause());
+        }
+    }
+
+    @FunctionalInterface
+    private interface MemTableWrite {
+        void apply(@NotNull MemTable memTable) throws IOException;
+    }
+}
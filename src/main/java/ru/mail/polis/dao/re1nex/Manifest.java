@@ -0,0 +1,322 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Append-only log of the edits defining the live SSTables and write-ahead logs of the storage.
+ * <p>
+ * Record layout:
+ * <pre>
+ * length:int crc:int [type:byte id:long generation:long]*
+ * </pre>
+ * A record holds all the edits of a single change, e.g. a flush or a compaction,
+ * and is forced before the change takes effect, so a change is replayed either entirely or not at all.
+ * The CRC32C covers the edits. Only the last record may be torn by a crash while it is appended,
+ * replay drops such a tail, while a bad record followed by more data means the manifest is corrupted
+ * and fails the open, since the state replayed up to it would lose the tables recorded after it.
+ * A table is identified by its file id and ordered by its generation, which a compaction result
+ * inherits from the freshest input. The manifest is rewritten as a single record of the current state
+ * on open and whenever it accumulates too many records.
+ * A failed append leaves the tail of the manifest unknown, so it is rewritten the same way
+ * before anything else is appended, which drops whatever part of the failed change has reached the disk.
+ */
+final class Manifest implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    static final String FILE_NAME = "MANIFEST";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final byte ADD_TABLE = 1;
+    private static final byte REMOVE_TABLE = 2;
+    private static final byte ADD_LOG = 3;
+    private static final byte REMOVE_LOG = 4;
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int EDIT_SIZE = 1 + Long.BYTES * 2;
+    // Records appended since the last rewrite which trigger the next one
+    private static final int MAX_RECORDS = 1024;
+
+    /**
+     * Edits of a single change applied atomically.
+     */
+    static final class Edit {
+        private final List<long[]> edits = new ArrayList<>();
+
+        @NotNull
+        Edit addTable(
+                final long id,
+                final long generation) {
+            return add(ADD_TABLE, id, generation);
+        }
+
+        @NotNull
+        Edit removeTable(final long id) {
+            return add(REMOVE_TABLE, id, 0);
+        }
+
+        @NotNull
+        Edit addLog(final long generation) {
+            return add(ADD_LOG, generation, 0);
+        }
+
+        @NotNull
+        Edit removeLog(final long generation) {
+            return add(REMOVE_LOG, generation, 0);
+        }
+
+        @NotNull
+        private Edit add(
+                final byte type,
+                final long id,
+                final long generation) {
+            edits.add(new long[]{type, id, generation});
+            return this;
+        }
+
+        @NotNull
+        private ByteBuffer record() {
+            final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + edits.size() * EDIT_SIZE);
+            record.position(HEADER_SIZE);
+            for (final long[] edit : edits) {
+                record.put((byte) edit[0]);
+                record.putLong(edit[1]);
+                record.putLong(edit[2]);
+            }
+            record.putInt(0, record.position() - HEADER_SIZE);
+            record.putInt(Integer.BYTES, Checksums.of(record.duplicate().flip().position(HEADER_SIZE)));
+            return record.flip();
+        }
+    }
+
+    @NotNull
+    private final File storage;
+    // Table file id -> generation
+    @NotNull
+    private final NavigableMap<Long, Long> tables = new TreeMap<>();
+    @NotNull
+    private final SortedSet<Long> logs = new TreeSet<>();
+    @Nullable
+    private FileChannel channel;
+    private int records;
+    // Set once a write fails, since the tail of the manifest is unknown until it is rewritten
+    private boolean dirty;
+
+    private Manifest(@NotNull final File storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Replays the manifest of the storage, an absent manifest stands for the empty storage.
+     */
+    @NotNull
+    static Manifest open(@NotNull final File storage) throws IOException {
+        final Manifest manifest = new Manifest(storage);
+        final Path file = manifest.file();
+        if (Files.exists(file)) {
+            manifest.replay(file);
+        }
+        manifest.rewrite();
+        return manifest;
+    }
+
+    /**
+     * @return live table file id -> table generation
+     */
+    @NotNull
+    synchronized NavigableMap<Long, Long> tables() {
+        return new TreeMap<>(tables);
+    }
+
+    /**
+     * @return generations of the live logs
+     */
+    @NotNull
+    synchronized SortedSet<Long> logs() {
+        return new TreeSet<>(logs);
+    }
+
+    /**
+     * Durably records the change, the change must not take effect unless this succeeds.
+     */
+    synchronized void apply(@NotNull final Edit edit) throws IOException {
+        if (dirty) {
+            rewrite();
+        }
+        assert channel != null;
+        final ByteBuffer record = edit.record();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            dirty = true;
+            try {
+                rewrite();
+            } catch (IOException rewriteError) {
+                // Retried by the next change
+                e.addSuppressed(rewriteError);
+            }
+            throw e;
+        }
+        for (final long[] entry : edit.edits) {
+            apply((byte) entry[0], entry[1], entry[2]);
+        }
+        if (++records >= MAX_RECORDS) {
+            try {
+                rewrite();
+            } catch (IOException e) {
+                // The change is durable anyway
+                log.error("Can't rewrite {}", file(), e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (dirty) {
+                rewrite();
+            }
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private void replay(@NotNull final Path file) throws IOException {
+        final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (contents.remaining() >= HEADER_SIZE) {
+            final int start = contents.position();
+            final int length = contents.getInt();
+            final int checksum = contents.getInt();
+            if (length < 0 || length % EDIT_SIZE != 0 || length > contents.remaining()) {
+                contents.position(start);
+                checkTorn(contents, length, file);
+                break;
+            }
+            final ByteBuffer edits = contents.slice().limit(length);
+            if (Checksums.of(edits) != checksum) {
+                contents.position(start);
+                checkTorn(contents, length, file);
+                break;
+            }
+            while (edits.hasRemaining()) {
+                apply(edits.get(), edits.getLong(), edits.getLong());
+            }
+            contents.position(start + HEADER_SIZE + length);
+        }
+        if (contents.hasRemaining()) {
+            log.warn("Skipped {} bytes of torn record at the tail of {}", contents.remaining(), file);
+        }
+    }
+
+    /**
+     * Makes sure the bad record at the position of the contents is the torn tail of the manifest.
+     * An append torn by a crash either declares more bytes than were written, or is the last record,
+     * or leaves the zeros of the preallocated space behind.
+     */
+    private static void checkTorn(
+            @NotNull final ByteBuffer contents,
+            final int length,
+            @NotNull final Path file) throws IOException {
+        final int remaining = contents.remaining() - HEADER_SIZE;
+        if (length > remaining || length == remaining) {
+            return;
+        }
+        for (int i = contents.position(); i < contents.limit(); i++) {
+            if (contents.get(i) != 0) {
+                throw new IOException("Corrupted record at " + contents.position() + " in the middle of " + file);
+            }
+        }
+    }
+
+    private void apply(
+            final byte type,
+            final long id,
+            final long generation) throws IOException {
+        switch (type) {
+            case ADD_TABLE:
+                tables.put(id, generation);
+                break;
+            case REMOVE_TABLE:
+                tables.remove(id);
+                break;
+            case ADD_LOG:
+                logs.add(id);
+                break;
+            case REMOVE_LOG:
+                logs.remove(id);
+                break;
+            default:
+                throw new IOException("Unknown manifest edit " + type);
+        }
+    }
+
+    /**
+     * Atomically replaces the manifest with a single record of the current state.
+     */
+    private void rewrite() throws IOException {
+        final Edit state = new Edit();
+        for (final Map.Entry<Long, Long> table : tables.entrySet()) {
+            state.addTable(table.getKey(), table.getValue());
+        }
+        for (final long generation : logs) {
+            state.addLog(generation);
+        }
+
+        final Path file = file();
+        final Path temp = file.resolveSibling(FILE_NAME + TEMP_SUFFIX);
+        try (FileChannel out = FileChannel.open(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer record = state.record();
+            while (record.hasRemaining()) {
+                out.write(record);
+            }
+            out.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        final FileChannel replaced = channel;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // The channel of the replaced file is closed below
+            dirty = true;
+            throw e;
+        } finally {
+            if (replaced != null) {
+                replaced.close();
+            }
+        }
+        records = 0;
+        dirty = false;
+    }
+
+    @NotNull
+    private Path file() {
+        return new File(storage, FILE_NAME).toPath();
+    }
+}
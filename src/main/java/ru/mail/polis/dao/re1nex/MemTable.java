@@ -0,0 +1,502 @@
+package ru.mail.polis.dao.re1nex;
+
+import com.google.common.collect.AbstractIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.WriteBatch;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * Mutable in-memory table.
+ * <p>
+ * Index is a lock-free {@link ConcurrentSkipListMap}, while key and value bytes
+ * are copied into an off-heap {@link MemoryArena}, so the heap holds only the skip list nodes.
+ * Every write is appended to the {@link WriteAheadLog} of the table before it becomes visible,
+ * the log numbers the writes as it orders them, so the log replays them in the order the snapshots saw them.
+ * <p>
+ * A key maps to the chain of its versions numbered by the {@link Sequencer}, the newest goes first,
+ * so a {@link Snapshot} keeps seeing the versions it was taken at while the key is overwritten.
+ * An overwrite drops the versions no open snapshot can see any more, those older than the latest one
+ * at the {@link Sequencer#horizon()}, the flush writes the newest ones only.
+ * {@link RangeTombstone}s are numbered the same way and hide the versions numbered before them,
+ * they are few, so they are kept in a plain list.
+ * <p>
+ * Writers enter the table with {@link #tryAcquire()}, so that {@link #seal()} can wait for
+ * the in-flight writes to land before the table is flushed.
+ */
+final class MemTable implements Table {
+    // Skip list node, index levels and buffer views per entry, roughly
+    private static final long ENTRY_OVERHEAD = 160L;
+    // Version, value and buffer view per overwrite, roughly
+    private static final long VERSION_OVERHEAD = 96L;
+    private static final int SEALED = Integer.MIN_VALUE;
+    private static final long SEAL_PARK_NANOS = 1_000_000L;
+    // Versions newer than the horizon looked through for the ones to drop
+    private static final int PRUNE_DEPTH = 4;
+
+    private final NavigableMap<ByteBuffer, Version> map = new ConcurrentSkipListMap<>();
+    private final List<RangeTombstone> ranges = new CopyOnWriteArrayList<>();
+    private final MemoryArena arena = new MemoryArena();
+    private final AtomicLong entries = new AtomicLong();
+    // Overwritten versions kept for snapshots
+    private final AtomicLong versions = new AtomicLong();
+    // Part of the size accounted for in the MemoryBudget
+    private final AtomicLong charged = new AtomicLong();
+    // Sealed bit and the number of writers inside
+    private final AtomicInteger writers = new AtomicInteger();
+    @Nullable
+    private volatile Thread sealer;
+    private final long generation;
+    // Absent while the table is being restored from its log
+    @Nullable
+    private final WriteAheadLog log;
+    // Absent while the table is being restored, the restored writes are numbered zero
+    @Nullable
+    private final Sequencer sequencer;
+
+    MemTable(final long generation) {
+        this(generation, null, null);
+    }
+
+    MemTable(
+            final long generation,
+            @Nullable final WriteAheadLog log,
+            @Nullable final Sequencer sequencer) {
+        this.generation = generation;
+        this.log = log;
+        this.sequencer = sequencer;
+    }
+
+    /**
+     * Registers a writer.
+     *
+     * @return {@code false} if the table is sealed and the writer should retry with the fresh one
+     */
+    boolean tryAcquire() {
+        while (true) {
+            final int current = writers.get();
+            if ((current & SEALED) != 0) {
+                return false;
+            }
+            if (writers.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (writers.decrementAndGet() == SEALED) {
+            // The last writer to leave the sealed table wakes the sealer up
+            final Thread waiting = sealer;
+            if (waiting != null) {
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    /**
+     * Forbids new writers and parks until the ones inside leave.
+     */
+    void seal() {
+        // Published before the sealed bit, so the last writer finds it
+        sealer = Thread.currentThread();
+        writers.getAndUpdate(current -> current | SEALED);
+        while (writers.get() != SEALED) {
+            // Bounded, so that a concurrent sealer, which is not woken up, rechecks anyway
+            LockSupport.parkNanos(this, SEAL_PARK_NANOS);
+        }
+    }
+
+    /**
+     * @param expiresAt epoch millis the value expires at or {@link Value#NEVER}
+     */
+    void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long expiresAt) throws IOException {
+        if (log == null) {
+            insert(key, Value.of(arena.copyOf(value), expiresAt), 0);
+            return;
+        }
+        put(key, Value.of(arena.copyOf(value), expiresAt), log.upsert(key, value, expiresAt));
+    }
+
+    void remove(@NotNull final ByteBuffer key) throws IOException {
+        if (log == null) {
+            insert(key, Value.tombstone(), 0);
+            return;
+        }
+        put(key, Value.tombstone(), log.remove(key));
+    }
+
+    /**
+     * Removes the keys from "from" (inclusive) to "to" (exclusive) with a single tombstone.
+     */
+    void removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        if (log == null) {
+            insertRange(from, to, 0);
+            return;
+        }
+
+        final long sequence = log.removeRange(from, to);
+        try {
+            insertRange(from, to, sequence);
+        } finally {
+            publish(sequence, sequence);
+        }
+    }
+
+    /**
+     * Applies the batch logging it as a single record, so snapshots and recovery see all of its writes or none.
+     */
+    void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final long first = log == null ? 0 : log.write(batch);
+        try {
+            batch.forEach(new WriteBatch.Handler() {
+                private long sequence = first;
+
+                @Override
+                public void upsert(
+                        @NotNull final ByteBuffer key,
+                        @NotNull final ByteBuffer value) {
+                    insert(key, Value.of(arena.copyOf(value)), next());
+                }
+
+                @Override
+                public void upsert(
+                        @NotNull final ByteBuffer key,
+                        @NotNull final ByteBuffer value,
+                        @NotNull final Instant expiresAt) {
+                    insert(key, Value.of(arena.copyOf(value), expiresAt.toEpochMilli()), next());
+                }
+
+                @Override
+                public void remove(@NotNull final ByteBuffer key) {
+                    insert(key, Value.tombstone(), next());
+                }
+
+                @Override
+                public void removeRange(
+                        @NotNull final ByteBuffer from,
+                        @NotNull final ByteBuffer to) {
+                    insertRange(from, to, next());
+                }
+
+                private long next() {
+                    return log == null ? 0 : sequence++;
+                }
+            });
+        } finally {
+            if (log != null) {
+                publish(first, first + batch.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * @return whether the log of the table has failed a write and accepts no more writes
+     */
+    boolean isLogBroken() {
+        return log != null && log.isBroken();
+    }
+
+    /**
+     * Forces the log of the table to the disk.
+     */
+    void sync() throws IOException {
+        if (log != null) {
+            log.sync();
+        }
+    }
+
+    /**
+     * Drops the log of the table once the table is persisted.
+     */
+    void discardLog() throws IOException {
+        if (log != null) {
+            log.delete();
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, Sequencer.LATEST);
+    }
+
+    /**
+     * @return the latest versions not newer than the given sequence number starting at "from" key
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final long sequence) {
+        final Iterator<Map.Entry<ByteBuffer, Version>> entries = map.tailMap(from).entrySet().iterator();
+        return new AbstractIterator<>() {
+            @Override
+            protected Cell computeNext() {
+                while (entries.hasNext()) {
+                    final Map.Entry<ByteBuffer, Version> entry = entries.next();
+                    final Version version = entry.getValue().visibleAt(sequence);
+                    if (version != null && !removed(entry.getKey(), version.sequence, sequence)) {
+                        return new Cell(entry.getKey(), version.value);
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) {
+        return get(key, Sequencer.LATEST);
+    }
+
+    /**
+     * @return the latest version not newer than the given sequence number,
+     * a tombstone if a range tombstone hides it
+     */
+    @Nullable
+    Value get(
+            @NotNull final ByteBuffer key,
+            final long sequence) {
+        final Version versions = map.get(key);
+        final Version version = versions == null ? null : versions.visibleAt(sequence);
+        if (removed(key, version == null ? -1 : version.sequence, sequence)) {
+            return Value.tombstone();
+        }
+        return version == null ? null : version.value;
+    }
+
+    /**
+     * @return the range tombstones not newer than the given sequence number
+     */
+    @NotNull
+    List<RangeTombstone> rangeTombstones(final long sequence) {
+        final List<RangeTombstone> result = new ArrayList<>();
+        for (final RangeTombstone range : ranges) {
+            if (range.sequence <= sequence) {
+                result.add(range);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * @return approximate memory footprint both on and off heap
+     */
+    long sizeInBytes() {
+        return arena.reservedBytes() + entries.get() * ENTRY_OVERHEAD + versions.get() * VERSION_OVERHEAD;
+    }
+
+    /**
+     * Accounts for the growth of the table since the previous call, so that every byte is charged once.
+     *
+     * @return bytes to charge to the {@link MemoryBudget}
+     */
+    long takeGrowth() {
+        final long size = sizeInBytes();
+        return Math.max(0L, size - charged.getAndAccumulate(size, Math::max));
+    }
+
+    /**
+     * @return bytes charged to the {@link MemoryBudget} so far
+     */
+    long charged() {
+        return charged.get();
+    }
+
+    boolean isEmpty() {
+        return map.isEmpty() && ranges.isEmpty();
+    }
+
+    /**
+     * @param version  sequence number of the version of the key
+     * @param sequence the latest write to see
+     * @return whether a range tombstone written after the version hides it
+     */
+    private boolean removed(
+            @NotNull final ByteBuffer key,
+            final long version,
+            final long sequence) {
+        for (final RangeTombstone range : ranges) {
+            if (range.sequence > version && range.sequence <= sequence && range.covers(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void insertRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to,
+            final long sequence) {
+        if (sequencer == null) {
+            // The restored keys are numbered zero too, so the earlier ones are dropped for the later ones to win
+            map.subMap(from, to).clear();
+        }
+        ranges.add(new RangeTombstone(arena.copyOf(from), arena.copyOf(to), sequence));
+        entries.incrementAndGet();
+    }
+
+    /**
+     * Applies the logged write and publishes it.
+     */
+    private void put(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value,
+            final long sequence) {
+        try {
+            insert(key, value, sequence);
+        } finally {
+            publish(sequence, sequence);
+        }
+    }
+
+    private void publish(
+            final long first,
+            final long last) {
+        assert sequencer != null;
+        sequencer.publish(first, last);
+    }
+
+    private void insert(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value,
+            final long sequence) {
+        // The key is copied into the arena only when it is new, an overwrite keeps the mapped copy
+        if (sequencer == null) {
+            // Nobody can see the restored versions but the latest ones
+            final Version latest = new Version(0, value, null);
+            if (map.replace(key, latest) == null && map.put(arena.copyOf(key), latest) == null) {
+                entries.incrementAndGet();
+            }
+            return;
+        }
+
+        final long horizon = sequencer.horizon();
+        // Whether the key is new and the versions dropped by the last attempt of the update
+        final boolean[] created = new boolean[1];
+        final int[] dropped = new int[1];
+        final BiFunction<ByteBuffer, Version, Version> update = (k, current) -> {
+            created[0] = current == null;
+            final Version inserted = Version.insert(current, sequence, value);
+            final Version pruned = inserted.prune(horizon);
+            dropped[0] = pruned == inserted ? 0 : inserted.length() - pruned.length();
+            return pruned;
+        };
+        if (map.computeIfPresent(key, update) == null) {
+            // Unless a concurrent insert of the key has won, the copy becomes the mapped key
+            map.compute(arena.copyOf(key), update);
+        }
+        if (created[0]) {
+            entries.incrementAndGet();
+        } else {
+            versions.addAndGet(1 - dropped[0]);
+        }
+    }
+
+    /**
+     * Immutable chain of the versions of a key in the descending order of their sequence numbers.
+     */
+    private static final class Version {
+        final long sequence;
+        @NotNull
+        final Value value;
+        @Nullable
+        final Version older;
+
+        Version(
+                final long sequence,
+                @NotNull final Value value,
+                @Nullable final Version older) {
+            this.sequence = sequence;
+            this.value = value;
+            this.older = older;
+        }
+
+        /**
+         * @return the chain with the version inserted in its place, a concurrent write may have overtaken it
+         */
+        @NotNull
+        static Version insert(
+                @Nullable final Version head,
+                final long sequence,
+                @NotNull final Value value) {
+            if (head == null || head.sequence <= sequence) {
+                return new Version(sequence, value, head);
+            }
+            return new Version(head.sequence, head.value, insert(head.older, sequence, value));
+        }
+
+        /**
+         * Versions newer than an open snapshot are kept anyway, so the latest version not newer than the horizon
+         * is looked for near the head only, the chain is cut on the next write once the snapshot is closed.
+         *
+         * @return the chain without the versions older than the latest one not newer than the horizon
+         */
+        @NotNull
+        Version prune(final long horizon) {
+            Version cut = this;
+            for (int depth = 0; cut.sequence > horizon; depth++) {
+                if (cut.older == null || depth == PRUNE_DEPTH) {
+                    return this;
+                }
+                cut = cut.older;
+            }
+            return cut.older == null ? this : cutAt(cut);
+        }
+
+        @NotNull
+        private Version cutAt(@NotNull final Version cut) {
+            if (this == cut) {
+                return new Version(sequence, value, null);
+            }
+            assert older != null;
+            return new Version(sequence, value, older.cutAt(cut));
+        }
+
+        int length() {
+            int length = 0;
+            for (Version version = this; version != null; version = version.older) {
+                length++;
+            }
+            return length;
+        }
+
+        @Nullable
+        Version visibleAt(final long sequence) {
+            for (Version version = this; version != null; version = version.older) {
+                if (version.sequence <= sequence) {
+                    return version;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bump-pointer allocator over direct memory slabs.
+ * <p>
+ * Keeps {@link MemTable} keys and values outside of the Java heap.
+ * Memory is never reclaimed piecewise: the whole arena goes away together with its MemTable.
+ */
+final class MemoryArena {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MAX_SLAB_CHUNK = SLAB_SIZE / 8;
+
+    private final AtomicReference<Slab> current;
+    private final AtomicLong reserved;
+
+    MemoryArena() {
+        this.current = new AtomicReference<>(new Slab(SLAB_SIZE));
+        this.reserved = new AtomicLong(SLAB_SIZE);
+    }
+
+    /**
+     * Copies remaining bytes of the buffer into the arena without touching its position.
+     *
+     * @return read-only view of the copy with position 0 and limit equal to the size
+     */
+    @NotNull
+    ByteBuffer copyOf(@NotNull final ByteBuffer src) {
+        final int size = src.remaining();
+        final ByteBuffer dst;
+        if (size > MAX_SLAB_CHUNK) {
+            // Large chunks would waste the tail of a slab, so they get a dedicated buffer
+            dst = ByteBuffer.allocateDirect(size);
+            reserved.addAndGet(size);
+        } else {
+            dst = allocate(size);
+        }
+        dst.put(src.duplicate());
+        dst.flip();
+        return dst.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return bytes of direct memory held by the arena
+     */
+    long reservedBytes() {
+        return reserved.get();
+    }
+
+    @NotNull
+    private ByteBuffer allocate(final int size) {
+        while (true) {
+            final Slab slab = current.get();
+            final ByteBuffer chunk = slab.tryAllocate(size);
+            if (chunk != null) {
+                return chunk;
+            }
+
+            // Slab is exhausted, let exactly one thread replace it
+            synchronized (this) {
+                if (current.get() == slab) {
+                    current.set(new Slab(SLAB_SIZE));
+                    reserved.addAndGet(SLAB_SIZE);
+                }
+            }
+        }
+    }
+
+    private static final class Slab {
+        private final ByteBuffer memory;
+        private final AtomicInteger offset = new AtomicInteger();
+
+        Slab(final int capacity) {
+            this.memory = ByteBuffer.allocateDirect(capacity);
+        }
+
+        @Nullable
+        ByteBuffer tryAllocate(final int size) {
+            final int start = offset.getAndAdd(size);
+            if (start + size > memory.capacity() || start + size < 0) {
+                return null;
+            }
+
+            return memory.duplicate()
+                    .position(start)
+                    .limit(start + size)
+                    .slice();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Memory shared by the {@link MemTable}s, the {@link BlockCache} and the requests in flight
+ * within the heap and the direct memory of the process.
+ * <p>
+ * Consumers account for the memory they take and release it once it is freed.
+ * Writers of a {@link LsmDAO} are stalled while the budget is exhausted even with the block cache dropped
+ * and rejected unless it is freed in time, while the block cache and the requests simply go without the memory.
+ * A request is reserved and released by the thread serving it, the writes of that thread are admitted
+ * within the reservation, since the request body is the very memory the write is about to take.
+ */
+public final class MemoryBudget {
+    private final long limit;
+    // Per pool
+    private final long[] used = new long[Pool.values().length];
+    private long total;
+    // Reserved for the requests served by the thread
+    private final ThreadLocal<long[]> requests = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * Consumers of the memory.
+     */
+    public enum Pool {
+        MEM_TABLES,
+        BLOCK_CACHE,
+        REQUESTS
+    }
+
+    /**
+     * @param limit bytes to share
+     */
+    public MemoryBudget(final long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Memory limit must be positive: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Takes the memory unless it would exceed the limit.
+     *
+     * @return {@code false} if there is not enough memory left
+     */
+    public synchronized boolean tryReserve(
+            @NotNull final Pool pool,
+            final long bytes) {
+        if (total + bytes > limit) {
+            return false;
+        }
+        add(pool, bytes);
+        if (pool == Pool.REQUESTS) {
+            requests.get()[0] += bytes;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the memory taken before.
+     */
+    public synchronized void release(
+            @NotNull final Pool pool,
+            final long bytes) {
+        add(pool, -bytes);
+        if (pool == Pool.REQUESTS) {
+            requests.get()[0] -= bytes;
+        }
+        notifyAll();
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return bytes taken by all the pools
+     */
+    public synchronized long getUsed() {
+        return total;
+    }
+
+    public synchronized long getUsed(@NotNull final Pool pool) {
+        return used[pool.ordinal()];
+    }
+
+    /**
+     * Accounts for the memory already taken, even beyond the limit.
+     */
+    synchronized void charge(
+            @NotNull final Pool pool,
+            final long bytes) {
+        add(pool, bytes);
+    }
+
+    /**
+     * @return whether there is room for a write of the given number of bytes by the current thread
+     */
+    synchronized boolean hasRoom(final long bytes) {
+        return total + Math.max(0L, bytes - requests.get()[0]) <= limit;
+    }
+
+    /**
+     * Waits until there is room for a write of the given number of bytes by the current thread, without taking them.
+     *
+     * @return {@code false} if the room has not been made in time
+     */
+    synchronized boolean awaitRoom(
+            final long bytes,
+            final long timeoutMillis) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutMillis * 1_000_000L;
+        while (!hasRoom(bytes)) {
+            final long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left / 1_000_000L, (int) (left % 1_000_000L));
+        }
+        return true;
+    }
+
+    private void add(
+            @NotNull final Pool pool,
+            final long bytes) {
+        used[pool.ordinal()] += bytes;
+        total += bytes;
+    }
+}
@@ -0,0 +1,17 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a write is rejected because the {@link MemoryBudget} has not been freed in time.
+ * The write is not applied and may be retried later.
+ */
+public final class MemoryLimitException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    MemoryLimitException(@NotNull final String message) {
+        super(message);
+    }
+}
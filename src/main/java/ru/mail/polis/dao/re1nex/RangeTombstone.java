@@ -0,0 +1,34 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removal of all the keys from "from" (inclusive) to "to" (exclusive).
+ * <p>
+ * Within a {@link MemTable} the tombstone shadows the versions with smaller sequence numbers.
+ * Within an {@link SSTable} it shadows the staler tables only:
+ * the flush or the compaction writing the table drops the shadowed records of the table itself.
+ */
+final class RangeTombstone {
+    @NotNull
+    final ByteBuffer from;
+    @NotNull
+    final ByteBuffer to;
+    // Zero for the tombstones of SSTables
+    final long sequence;
+
+    RangeTombstone(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to,
+            final long sequence) {
+        this.from = from;
+        this.to = to;
+        this.sequence = sequence;
+    }
+
+    boolean covers(@NotNull final ByteBuffer key) {
+        return from.compareTo(key) <= 0 && key.compareTo(to) < 0;
+    }
+}
@@ -0,0 +1,1066 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Immutable sorted table persisted to a file.
+ * <p>
+ * File layout:
+ * <pre>
+ * data:   [block]*                                         (see {@link Block}, possibly compressed)
+ * index:  [blockOffset:long storedSize:int size:int crc:int keyOffset:long]*
+ * keys:   [keyLength:int key]*                             (the first key of every block)
+ * vlog:   [segment:long bytes:long]*                       (the referenced {@link ValueLog} segments)
+ * ranges: [fromLength:int from toLength:int to]*           (disjoint {@link RangeTombstone}s in key order)
+ * bloom:  [word:long]*                                     (see {@link BloomFilter})
+ * footer: indexOffset:long blocks:long count:long tombstones:long valueLogOffset:long rangesOffset:long
+ *         bloomOffset:long expiresAt:long writtenAt:long
+ *         level:int compression:int hashCount:int version:int magic:int
+ * </pre>
+ * Records are grouped into blocks of about {@link Config#getBlockSize()} bytes, a block is stored compressed
+ * only if it shrinks, so its stored size differs from the uncompressed one.
+ * The CRC32C of the stored block bytes is verified whenever a block is read from the disk into the block cache
+ * and on reads of the mapped blocks unless {@link ChecksumVerification#COMPACTION} leaves it to compactions.
+ * A table is stored in the file named after its unique id, while its generation is kept in the {@link Manifest}.
+ * Flushed tables belong to level 0, deeper levels are filled by {@link LeveledCompaction}.
+ * A seek is a binary search over the first keys of the blocks followed by a search within a block,
+ * a point lookup first consults the Bloom filter and skips the table if the key is definitely absent,
+ * so it reads and decompresses a single block at most.
+ * Range tombstones shadow the staler tables only, a record of the table itself wins over them.
+ * They are loaded on open and widen the key range of the table.
+ * The footer keeps the time the earliest expiring value of the table expires at,
+ * so the tables holding expired values are found without reading them.
+ * It also keeps the number of tombstones and the time the freshest record was written at,
+ * so the tables full of tombstones past the grace period are found the same way.
+ * Tables are memory-mapped, so uncompressed blocks are handed out as zero-copy views of the page cache.
+ * Tables too large to be mapped fall back to positional {@link FileChannel} reads.
+ * Decompressed and read blocks are kept in the shared {@link BlockCache}.
+ * A table is written in a single pass keeping just the current block in memory: the index entries, the first keys
+ * and the key hashes for the Bloom filter are spilled to side files and appended once the data is written.
+ * Flushes and compactions may write the tables and read the compaction inputs through {@link DirectIo},
+ * so that they do not evict the working set of the reads from the page cache.
+ * Large values may be separated to the {@link ValueLog}, the table maps the segments it references on open,
+ * so its values stay readable even after the segments are removed.
+ * Opening a table reads just the footer and the value log references, the Bloom filter and the key range
+ * are loaded independently on first access, so the storage with many tables opens quickly.
+ * A table is reference counted: the storage holds a reference while the table is live
+ * and every {@link Snapshot} holds one, the table is closed and its retired file removed by the last holder.
+ */
+final class SSTable implements Table, Closeable {
+    /**
+     * Tables holding fresher data go first: shallower levels, then newer generations.
+     */
+    static final Comparator<SSTable> FRESHEST_FIRST = Comparator.comparingInt(SSTable::level)
+            .thenComparing(Comparator.comparingLong(SSTable::generation).reversed());
+
+    static final String SUFFIX = ".db";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Side files of a table being written holding what does not fit in memory until the data is written
+    private static final String INDEX_SPILL_SUFFIX = ".index";
+    private static final String HASH_SPILL_SUFFIX = ".hashes";
+
+    private static final int VERSION = 12;
+    private static final int MAGIC = 0x4C534D54;
+    private static final int FOOTER_SIZE = Long.BYTES * 9 + Integer.BYTES * 5;
+    private static final int VALUE_LOG_ENTRY_SIZE = Long.BYTES * 2;
+    private static final int INDEX_ENTRY_SIZE = Long.BYTES * 2 + Integer.BYTES * 3;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    // Identifies tables in the block cache, unlike generations ids are never reused
+    private static final AtomicLong IDS = new AtomicLong();
+    // Native zlib streams are expensive to create
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final long id = IDS.incrementAndGet();
+    @NotNull
+    private final Path file;
+    @NotNull
+    private final FileChannel channel;
+    // The storage holds the first one
+    private final AtomicInteger references = new AtomicInteger(1);
+    // Replaced by a compaction, the file goes away along with the last reference
+    private volatile boolean retired;
+    @NotNull
+    private final BlockCache blockCache;
+    @Nullable
+    private final MappedByteBuffer mapped;
+    private final long fileId;
+    private final long generation;
+    private final int level;
+    private final long size;
+    private final long indexOffset;
+    private final int blocks;
+    private final long count;
+    private final long tombstones;
+    @NotNull
+    private final Compression compression;
+    private final long bloomOffset;
+    // The earliest expiration time of the values
+    private final long expiresAt;
+    // Epoch millis the freshest record was written at
+    private final long writtenAt;
+    private final int hashCount;
+    // Whether reads verify the mapped blocks and the separated values
+    private final boolean verifyReads;
+    // Referenced value log segment -> referenced bytes
+    @NotNull
+    private final Map<Long, Long> valueLogBytes;
+    // Referenced value log segment -> mapped contents
+    @NotNull
+    private final Map<Long, ByteBuffer> valueLogSegments;
+    @NotNull
+    private final List<RangeTombstone> rangeTombstones;
+    @NotNull
+    private final DeletedRanges deletedRanges;
+    // Loaded on first access
+    @Nullable
+    private volatile BloomFilter bloomFilter;
+    @Nullable
+    private volatile KeyRange keyRange;
+
+    private SSTable(
+            @NotNull final Path file,
+            @NotNull final FileChannel channel,
+            final long fileId,
+            final long generation,
+            @NotNull final BlockCache blockCache,
+            @NotNull final ValueLog valueLog,
+            final boolean verifyReads) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.blockCache = blockCache;
+        this.verifyReads = verifyReads;
+        this.fileId = fileId;
+        this.generation = generation;
+
+        this.size = channel.size();
+        if (size < FOOTER_SIZE) {
+            throw new IOException("Table is too short: " + size);
+        }
+        this.mapped = size <= Integer.MAX_VALUE
+                ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                : null;
+        final ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+        this.indexOffset = footer.getLong();
+        final long blockCount = footer.getLong();
+        this.count = footer.getLong();
+        this.tombstones = footer.getLong();
+        final long valueLogOffset = footer.getLong();
+        final long rangesOffset = footer.getLong();
+        this.bloomOffset = footer.getLong();
+        this.expiresAt = footer.getLong();
+        this.writtenAt = footer.getLong();
+        this.level = footer.getInt();
+        final int compressionId = footer.getInt();
+        this.hashCount = footer.getInt();
+        final int version = footer.getInt();
+        final int magic = footer.getInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException("Unsupported table format " + version + "/" + Integer.toHexString(magic));
+        }
+        if (level < 0) {
+            throw new IOException("Corrupted level " + level + " of table " + generation);
+        }
+        if (blockCount < 0 || blockCount > Integer.MAX_VALUE || count < blockCount
+                || tombstones < 0 || tombstones > count
+                || indexOffset + blockCount * INDEX_ENTRY_SIZE > valueLogOffset
+                || valueLogOffset > rangesOffset || (rangesOffset - valueLogOffset) % VALUE_LOG_ENTRY_SIZE != 0
+                || rangesOffset > bloomOffset
+                || size - FOOTER_SIZE - bloomOffset != (long) BloomFilter.wordsFor(count) * Long.BYTES) {
+            throw new IOException("Corrupted table index");
+        }
+        this.blocks = (int) blockCount;
+        try {
+            this.compression = Compression.of(compressionId);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted table footer", e);
+        }
+        final Map<Long, Long> referenced = new HashMap<>();
+        final Map<Long, ByteBuffer> segments = new HashMap<>();
+        for (long entry = valueLogOffset; entry < rangesOffset; entry += VALUE_LOG_ENTRY_SIZE) {
+            final long segment = longAt(entry);
+            referenced.put(segment, longAt(entry + Long.BYTES));
+            segments.put(segment, valueLog.segment(segment));
+        }
+        this.valueLogBytes = Collections.unmodifiableMap(referenced);
+        this.valueLogSegments = segments;
+        this.rangeTombstones = readRanges(rangesOffset);
+        this.deletedRanges = DeletedRanges.of(rangeTombstones);
+    }
+
+    /**
+     * Opens the table stored in the file with the given id.
+     *
+     * @param generation  position of the table in the order of freshness
+     * @param verifyReads whether reads verify the checksums of the mapped blocks and the separated values
+     */
+    @NotNull
+    static SSTable open(
+            @NotNull final File storage,
+            final long fileId,
+            final long generation,
+            @NotNull final BlockCache blockCache,
+            @NotNull final ValueLog valueLog,
+            final boolean verifyReads) throws IOException {
+        final Path file = file(storage, fileId).toPath();
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new SSTable(file, channel, fileId, generation, blockCache, valueLog, verifyReads);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes cells to the file atomically: the table either appears complete or does not appear at all.
+     * An existing file is atomically replaced.
+     * Separated values are expected to be forced to the value log by the time the cells are exhausted.
+     *
+     * @param ranges    disjoint range tombstones in key order, requested once the cells are exhausted
+     * @param level     level the table belongs to
+     * @param writtenAt epoch millis the freshest cell was written at
+     * @param config   block size and compression
+     * @param io       whether the file bypasses the page cache
+     * @param throttle limits the write rate
+     */
+    static void write(
+            @NotNull final File file,
+            @NotNull final Iterator<Cell> cells,
+            @NotNull final Supplier<List<RangeTombstone>> ranges,
+            final int level,
+            final long writtenAt,
+            @NotNull final Config config,
+            @NotNull final DirectIo io,
+            @NotNull final WriteRateLimiter.Throttle throttle) throws IOException {
+        final Path temp = file.toPath().resolveSibling(file.getName() + TEMP_SUFFIX);
+        final Path indexSpill = temp.resolveSibling(temp.getFileName() + INDEX_SPILL_SUFFIX);
+        final Path hashSpill = temp.resolveSibling(temp.getFileName() + HASH_SPILL_SUFFIX);
+        final Deflater deflater = config.getCompression() == Compression.DEFLATE
+                ? new Deflater(Deflater.BEST_SPEED)
+                : null;
+        try (DirectIo.Output channel = io.output(
+                temp,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+             DataOutputStream index = spill(indexSpill);
+             DataOutputStream hashes = spill(hashSpill)) {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            final BlockBuilder block = new BlockBuilder(config.getBlockSize());
+            final Map<Long, Long> valueLogBytes = new TreeMap<>();
+            byte[] firstKey = null;
+            long blockOffset = 0;
+            int blockCount = 0;
+            long keysSize = 0;
+            long offset = 0;
+            long count = 0;
+            long expiresAt = Value.NEVER;
+            long tombstones = 0;
+            while (cells.hasNext()) {
+                final Cell cell = cells.next();
+                final ByteBuffer key = cell.getKey();
+                if (cell.getValue().isTombstone()) {
+                    tombstones++;
+                } else {
+                    expiresAt = Math.min(expiresAt, cell.getValue().getExpiresAt());
+                }
+                hashes.writeLong(BloomFilter.hash(key));
+                count++;
+                final ValueLog.Pointer pointer = cell.getValue().getPointer();
+                if (pointer != null) {
+                    valueLogBytes.merge(pointer.segment, (long) pointer.length, Long::sum);
+                }
+                if (block.isEmpty()) {
+                    blockOffset = offset;
+                    firstKey = toArray(key);
+                }
+                block.add(key, cell.getValue());
+                if (block.sizeInBytes() >= config.getBlockSize() || !cells.hasNext()) {
+                    final ByteBuffer raw = block.build();
+                    final ByteBuffer stored = deflater == null ? raw : compress(deflater, raw);
+                    index.writeLong(blockOffset);
+                    index.writeInt(stored.remaining());
+                    index.writeInt(raw.remaining());
+                    index.writeInt(Checksums.of(stored));
+                    index.writeInt(firstKey.length);
+                    index.write(firstKey);
+                    blockCount++;
+                    keysSize += Integer.BYTES + firstKey.length;
+                    offset += stored.remaining();
+                    put(channel, buffer, stored, throttle);
+                }
+            }
+            index.flush();
+            hashes.flush();
+
+            final long indexOffset = offset;
+            final long keysOffset = indexOffset + (long) blockCount * INDEX_ENTRY_SIZE;
+            // The index entries go first, then the first keys they point to
+            try (DataInputStream entries = unspill(indexSpill)) {
+                long keyOffset = keysOffset;
+                for (int i = 0; i < blockCount; i++) {
+                    ensureRemaining(channel, buffer, INDEX_ENTRY_SIZE, throttle);
+                    buffer.putLong(entries.readLong());
+                    buffer.putInt(entries.readInt());
+                    buffer.putInt(entries.readInt());
+                    buffer.putInt(entries.readInt());
+                    buffer.putLong(keyOffset);
+                    final int keyLength = entries.readInt();
+                    entries.readFully(new byte[keyLength]);
+                    keyOffset += Integer.BYTES + keyLength;
+                }
+            }
+            try (DataInputStream entries = unspill(indexSpill)) {
+                for (int i = 0; i < blockCount; i++) {
+                    entries.readLong();
+                    entries.readInt();
+                    entries.readInt();
+                    entries.readInt();
+                    final byte[] key = new byte[entries.readInt()];
+                    entries.readFully(key);
+                    ensureRemaining(channel, buffer, Integer.BYTES, throttle);
+                    buffer.putInt(key.length);
+                    put(channel, buffer, ByteBuffer.wrap(key), throttle);
+                }
+            }
+
+            final long valueLogOffset = keysOffset + keysSize;
+            for (final Map.Entry<Long, Long> segment : valueLogBytes.entrySet()) {
+                ensureRemaining(channel, buffer, VALUE_LOG_ENTRY_SIZE, throttle);
+                buffer.putLong(segment.getKey());
+                buffer.putLong(segment.getValue());
+            }
+
+            final long rangesOffset = valueLogOffset + (long) valueLogBytes.size() * VALUE_LOG_ENTRY_SIZE;
+            long rangesSize = 0;
+            for (final RangeTombstone range : ranges.get()) {
+                for (final ByteBuffer bound : List.of(range.from, range.to)) {
+                    ensureRemaining(channel, buffer, Integer.BYTES, throttle);
+                    buffer.putInt(bound.remaining());
+                    put(channel, buffer, bound.duplicate(), throttle);
+                    rangesSize += Integer.BYTES + bound.remaining();
+                }
+            }
+
+            final long bloomOffset = rangesOffset + rangesSize;
+            // Only the filter itself is held in memory
+            final long[] bloom = new long[BloomFilter.wordsFor(count)];
+            try (DataInputStream keyHashes = unspill(hashSpill)) {
+                for (long i = 0; i < count; i++) {
+                    BloomFilter.add(bloom, keyHashes.readLong(), BloomFilter.HASH_COUNT);
+                }
+            }
+            for (final long word : bloom) {
+                ensureRemaining(channel, buffer, Long.BYTES, throttle);
+                buffer.putLong(word);
+            }
+
+            ensureRemaining(channel, buffer, FOOTER_SIZE, throttle);
+            buffer.putLong(indexOffset);
+            buffer.putLong(blockCount);
+            buffer.putLong(count);
+            buffer.putLong(tombstones);
+            buffer.putLong(valueLogOffset);
+            buffer.putLong(rangesOffset);
+            buffer.putLong(bloomOffset);
+            buffer.putLong(expiresAt);
+            buffer.putLong(writtenAt);
+            buffer.putInt(level);
+            buffer.putInt(config.getCompression().id);
+            buffer.putInt(BloomFilter.HASH_COUNT);
+            buffer.putInt(VERSION);
+            buffer.putInt(MAGIC);
+            flush(channel, buffer, throttle);
+            channel.complete();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            Files.deleteIfExists(indexSpill);
+            Files.deleteIfExists(hashSpill);
+        }
+        Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return file of the table with the given id
+     */
+    @NotNull
+    static File file(
+            @NotNull final File storage,
+            final long fileId) {
+        return new File(storage, fileId + SUFFIX);
+    }
+
+    /**
+     * @return id of the table stored in the file or -1 if it is not a table
+     */
+    static long fileIdOf(@NotNull final String fileName) {
+        return FileNames.generationOf(fileName, SUFFIX);
+    }
+
+    /**
+     * @return whether the file is an incomplete table left by an interrupted write
+     */
+    static boolean isTemporary(@NotNull final String fileName) {
+        String table = fileName;
+        for (final String spill : List.of(INDEX_SPILL_SUFFIX, HASH_SPILL_SUFFIX)) {
+            if (table.endsWith(spill)) {
+                table = table.substring(0, table.length() - spill.length());
+            }
+        }
+        return table.endsWith(SUFFIX + TEMP_SUFFIX)
+                && fileIdOf(table.substring(0, table.length() - TEMP_SUFFIX.length())) >= 0;
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return iterator(from, verifyReads);
+    }
+
+    /**
+     * @param verify whether to verify the checksums of all the blocks and the separated values,
+     *               corrupted data is thrown as {@link UncheckedIOException} from the iterator
+     * @return cells with keys not less than the given one
+     */
+    @NotNull
+    Iterator<Cell> iterator(
+            @NotNull final ByteBuffer from,
+            final boolean verify) throws IOException {
+        final int startBlock = blockOf(from);
+        if (startBlock < 0) {
+            return Collections.emptyIterator();
+        }
+        final Iterator<Cell> first = blockAt(startBlock, verify).iterator(from);
+        return new Iterator<>() {
+            private int blockIndex = startBlock;
+            private Iterator<Cell> block = first;
+
+            @Override
+            public boolean hasNext() {
+                return block.hasNext() || blockIndex + 1 < blocks;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (!block.hasNext()) {
+                    try {
+                        block = blockAt(++blockIndex, verify).iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return block.next();
+            }
+        };
+    }
+
+    /**
+     * Reads all the cells through the input instead of the mapping and the block cache,
+     * verifying the checksums of all the blocks and the separated values.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull final DirectIo.Input input) {
+        return new Iterator<>() {
+            private int blockIndex = -1;
+            private Iterator<Cell> block = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                return block.hasNext() || blockIndex + 1 < blocks;
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if (!block.hasNext()) {
+                    try {
+                        block = blockAt(++blockIndex, input).iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return block.next();
+            }
+        };
+    }
+
+    /**
+     * @return the record of the key, a tombstone if a range tombstone of the table covers the key
+     */
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) throws IOException {
+        final Value value = find(key);
+        if (value == null && deletedRanges.covers(key)) {
+            return Value.tombstone();
+        }
+        return value;
+    }
+
+    /**
+     * Reads every block from the disk bypassing the block cache and decodes every record
+     * verifying all the checksums.
+     *
+     * @throws IOException if the table is corrupted
+     */
+    void verify() throws IOException {
+        for (int block = 0; block < blocks; block++) {
+            final long entry = indexOffset + (long) block * INDEX_ENTRY_SIZE;
+            final int storedSize = intAt(entry + Long.BYTES);
+            final int rawSize = intAt(entry + Long.BYTES + Integer.BYTES);
+            final ByteBuffer stored = read(longAt(entry), storedSize);
+            verify(block, stored, intAt(entry + Long.BYTES + Integer.BYTES * 2));
+            final ByteBuffer raw = storedSize == rawSize ? stored : decompress(stored, rawSize);
+            final Iterator<Cell> cells = new Block(raw, valueLogSegments, true).iterator();
+            try {
+                while (cells.hasNext()) {
+                    cells.next();
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    long fileId() {
+        return fileId;
+    }
+
+    int level() {
+        return level;
+    }
+
+    /**
+     * @return whether the table has keys within the given inclusive range
+     */
+    boolean overlaps(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) {
+        final ByteBuffer firstKey = firstKey();
+        final ByteBuffer lastKey = lastKey();
+        return firstKey != null && lastKey != null && firstKey.compareTo(to) <= 0 && lastKey.compareTo(from) >= 0;
+    }
+
+    /**
+     * @return the smallest key or {@code null} if the table is empty
+     */
+    @Nullable
+    ByteBuffer firstKey() {
+        return keyRange().first;
+    }
+
+    /**
+     * @return the largest key or {@code null} if the table is empty
+     */
+    @Nullable
+    ByteBuffer lastKey() {
+        return keyRange().last;
+    }
+
+    /**
+     * @return epoch millis the earliest expiring value expires at, {@link Value#NEVER} if none expires
+     */
+    long expiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return share of tombstones among the records
+     */
+    double tombstoneRatio() {
+        return count == 0 ? 0 : (double) tombstones / count;
+    }
+
+    /**
+     * @return epoch millis the freshest record was written at
+     */
+    long writtenAt() {
+        return writtenAt;
+    }
+
+    /**
+     * @return disjoint range tombstones in key order
+     */
+    @NotNull
+    List<RangeTombstone> rangeTombstones() {
+        return rangeTombstones;
+    }
+
+    /**
+     * @return bytes of every value log segment referenced by the table
+     */
+    @NotNull
+    Map<Long, Long> valueLogBytes() {
+        return valueLogBytes;
+    }
+
+    /**
+     * @return size of the table file
+     */
+    long sizeInBytes() {
+        return size;
+    }
+
+    /**
+     * Takes a reference to the table.
+     *
+     * @return {@code false} if the table is closed already
+     */
+    boolean retain() {
+        while (true) {
+            final int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Releases the reference of the storage to the table replaced by a compaction,
+     * the file is removed as soon as nobody else references the table.
+     */
+    void retire() throws IOException {
+        retired = true;
+        close();
+    }
+
+    /**
+     * Releases a reference to the table, the last one closes the table.
+     */
+    @Override
+    public void close() throws IOException {
+        if (references.decrementAndGet() > 0) {
+            return;
+        }
+        channel.close();
+        if (retired) {
+            Files.delete(file);
+        }
+    }
+
+    @NotNull
+    private BloomFilter bloomFilter() throws IOException {
+        BloomFilter result = bloomFilter;
+        if (result == null) {
+            synchronized (this) {
+                result = bloomFilter;
+                if (result == null) {
+                    // A view of the mapped file or a compact heap copy
+                    result = new BloomFilter(
+                            read(bloomOffset, (int) (size - FOOTER_SIZE - bloomOffset)).asLongBuffer(),
+                            hashCount);
+                    bloomFilter = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @NotNull
+    private KeyRange keyRange() {
+        KeyRange result = keyRange;
+        if (result == null) {
+            synchronized (this) {
+                result = keyRange;
+                if (result == null) {
+                    try {
+                        ByteBuffer first = blocks == 0 ? null : firstKeyOf(0);
+                        ByteBuffer last = blocks == 0 ? null : blockAt(blocks - 1, false).lastKey();
+                        if (!rangeTombstones.isEmpty()) {
+                            final ByteBuffer from = rangeTombstones.get(0).from;
+                            final ByteBuffer to = rangeTombstones.get(rangeTombstones.size() - 1).to;
+                            first = first == null || from.compareTo(first) < 0 ? from : first;
+                            last = last == null || to.compareTo(last) > 0 ? to : last;
+                        }
+                        result = new KeyRange(first, last);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Can't read table " + generation, e);
+                    }
+                    keyRange = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    @Nullable
+    private Value find(@NotNull final ByteBuffer key) throws IOException {
+        if (!bloomFilter().mightContain(key)) {
+            return null;
+        }
+
+        final int blockIndex = blockOf(key);
+        if (blockIndex < 0) {
+            return null;
+        }
+        try {
+            final Block mapped = mappedBlockAt(blockIndex, verifyReads);
+            if (mapped != null) {
+                return mapped.get(key);
+            }
+            final Value[] found = new Value[1];
+            // Decoded in place, only the value found is copied out of the cache
+            final boolean cached = blockCache.read(id, blockIndex, data -> {
+                final Value value = new Block(data, valueLogSegments, verifyReads).get(key);
+                found[0] = value == null ? null : value.detached();
+            });
+            if (cached) {
+                return found[0];
+            }
+            return new Block(load(blockIndex), valueLogSegments, verifyReads).get(key);
+        } catch (UncheckedIOException e) {
+            throw new IOException("Corrupted table " + fileId, e.getCause());
+        }
+    }
+
+    @NotNull
+    private List<RangeTombstone> readRanges(final long rangesOffset) throws IOException {
+        final List<RangeTombstone> ranges = new ArrayList<>();
+        long position = rangesOffset;
+        while (position < bloomOffset) {
+            final ByteBuffer from = readBound(position);
+            position += Integer.BYTES + from.remaining();
+            final ByteBuffer to = readBound(position);
+            position += Integer.BYTES + to.remaining();
+            ranges.add(new RangeTombstone(from, to, 0));
+        }
+        if (position != bloomOffset) {
+            throw new IOException("Corrupted range tombstones of table " + fileId);
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    @NotNull
+    private ByteBuffer readBound(final long position) throws IOException {
+        if (position + Integer.BYTES > bloomOffset) {
+            throw new IOException("Corrupted range tombstones of table " + fileId);
+        }
+        final int length = intAt(position);
+        if (length < 0 || position + Integer.BYTES + length > bloomOffset) {
+            throw new IOException("Corrupted range tombstones of table " + fileId);
+        }
+        return read(position + Integer.BYTES, length);
+    }
+
+    /**
+     * @return index of the last block with the first key not greater than the given one,
+     * the first block if there is no such block or -1 if the table is empty
+     */
+    private int blockOf(@NotNull final ByteBuffer key) throws IOException {
+        int left = 0;
+        int right = blocks - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int cmp = firstKeyOf(mid).compareTo(key);
+            if (cmp < 0) {
+                left = mid + 1;
+            } else if (cmp > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return blocks == 0 ? -1 : Math.max(0, right);
+    }
+
+    @NotNull
+    private ByteBuffer firstKeyOf(final int block) throws IOException {
+        final long keyOffset = longAt(indexOffset + (long) block * INDEX_ENTRY_SIZE + Long.BYTES + Integer.BYTES * 3);
+        return read(keyOffset + Integer.BYTES, intAt(keyOffset));
+    }
+
+    /**
+     * @param verify whether to verify the mapped block and the separated values,
+     *               blocks read into the block cache are verified anyway
+     */
+    @NotNull
+    private Block blockAt(
+            final int block,
+            final boolean verify) throws IOException {
+        final Block mapped = mappedBlockAt(block, verify);
+        if (mapped != null) {
+            return mapped;
+        }
+        final ByteBuffer cached = blockCache.get(id, block);
+        if (cached != null) {
+            return new Block(cached, valueLogSegments, verify);
+        }
+        return new Block(load(block), valueLogSegments, verify);
+    }
+
+    /**
+     * @return view of the uncompressed mapped block or {@code null} if the block goes through the block cache
+     */
+    @Nullable
+    private Block mappedBlockAt(
+            final int block,
+            final boolean verify) throws IOException {
+        final long entry = indexOffset + (long) block * INDEX_ENTRY_SIZE;
+        final int storedSize = intAt(entry + Long.BYTES);
+        if (storedSize != intAt(entry + Long.BYTES + Integer.BYTES) || mapped == null) {
+            return null;
+        }
+        // Nothing to save
+        final ByteBuffer stored = read(longAt(entry), storedSize);
+        if (verify) {
+            verify(block, stored, intAt(entry + Long.BYTES + Integer.BYTES * 2));
+        }
+        return new Block(stored, valueLogSegments, verify);
+    }
+
+    /**
+     * Reads the block missing from the block cache verifying its checksum and caches it.
+     *
+     * @return the uncompressed block
+     */
+    @NotNull
+    private ByteBuffer load(final int block) throws IOException {
+        final long entry = indexOffset + (long) block * INDEX_ENTRY_SIZE;
+        final int storedSize = intAt(entry + Long.BYTES);
+        final int rawSize = intAt(entry + Long.BYTES + Integer.BYTES);
+        final ByteBuffer stored = read(longAt(entry), storedSize);
+        verify(block, stored, intAt(entry + Long.BYTES + Integer.BYTES * 2));
+        final ByteBuffer raw = storedSize == rawSize ? stored : decompress(stored, rawSize);
+        blockCache.put(id, block, raw);
+        return raw;
+    }
+
+    /**
+     * Reads the block through the input verifying its checksum, the block cache is bypassed.
+     */
+    @NotNull
+    private Block blockAt(
+            final int block,
+            @NotNull final DirectIo.Input input) throws IOException {
+        final long entry = indexOffset + (long) block * INDEX_ENTRY_SIZE;
+        final int storedSize = intAt(entry + Long.BYTES);
+        final int rawSize = intAt(entry + Long.BYTES + Integer.BYTES);
+        final ByteBuffer stored = input.read(longAt(entry), storedSize);
+        verify(block, stored, intAt(entry + Long.BYTES + Integer.BYTES * 2));
+        final ByteBuffer raw = storedSize == rawSize ? stored : decompress(stored, rawSize);
+        return new Block(raw, valueLogSegments, true);
+    }
+
+    private void verify(
+            final int block,
+            @NotNull final ByteBuffer stored,
+            final int checksum) throws IOException {
+        if (Checksums.of(stored) != checksum) {
+            throw new IOException("Corrupted block " + block + " of table " + fileId);
+        }
+    }
+
+    /**
+     * Inflates a block of {@link Compression#DEFLATE} table.
+     */
+    @NotNull
+    private ByteBuffer decompress(
+            @NotNull final ByteBuffer stored,
+            final int rawSize) throws IOException {
+        if (compression != Compression.DEFLATE) {
+            throw new IOException("Compressed block in table " + generation + " without compression");
+        }
+        final Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(stored);
+        final ByteBuffer raw = ByteBuffer.allocate(rawSize);
+        try {
+            while (raw.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(raw) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block in table " + generation, e);
+        }
+        if (raw.hasRemaining() || !inflater.finished()) {
+            throw new IOException("Corrupted block in table " + generation);
+        }
+        return raw.flip();
+    }
+
+    /**
+     * @return compressed copy of the block or the block itself if it does not shrink
+     */
+    @NotNull
+    private static ByteBuffer compress(
+            @NotNull final Deflater deflater,
+            @NotNull final ByteBuffer raw) {
+        deflater.reset();
+        deflater.setInput(raw.duplicate());
+        deflater.finish();
+        // Smaller than the block or useless
+        final ByteBuffer compressed = ByteBuffer.allocate(raw.remaining() - 1);
+        while (compressed.hasRemaining() && !deflater.finished()) {
+            deflater.deflate(compressed);
+        }
+        return deflater.finished() ? compressed.flip() : raw;
+    }
+
+    private long longAt(final long position) throws IOException {
+        if (mapped != null) {
+            return mapped.getLong((int) position);
+        }
+        return read(position, Long.BYTES).getLong();
+    }
+
+    private int intAt(final long position) throws IOException {
+        if (mapped != null) {
+            return mapped.getInt((int) position);
+        }
+        return read(position, Integer.BYTES).getInt();
+    }
+
+    @NotNull
+    private static DataOutputStream spill(@NotNull final Path file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(
+                        file,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE),
+                WRITE_BUFFER_SIZE));
+    }
+
+    @NotNull
+    private static DataInputStream unspill(@NotNull final Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file), WRITE_BUFFER_SIZE));
+    }
+
+    @NotNull
+    private static byte[] toArray(@NotNull final ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+
+    /**
+     * @return view of the mapped table region or its heap copy when the table is not mapped
+     */
+    @NotNull
+    private ByteBuffer read(
+            final long position,
+            final int size) throws IOException {
+        if (mapped != null) {
+            return mapped.duplicate()
+                    .position((int) position)
+                    .limit((int) position + size)
+                    .slice();
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        long current = position;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, current);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of table at " + current);
+            }
+            current += read;
+        }
+        return buffer.flip();
+    }
+
+    private static void put(
+            @NotNull final DirectIo.Output channel,
+            @NotNull final ByteBuffer buffer,
+            @NotNull final ByteBuffer data,
+            @NotNull final WriteRateLimiter.Throttle throttle) throws IOException {
+        if (data.remaining() > buffer.remaining()) {
+            flush(channel, buffer, throttle);
+            throttle.acquire(data.remaining());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        } else {
+            buffer.put(data);
+        }
+    }
+
+    private static void ensureRemaining(
+            @NotNull final DirectIo.Output channel,
+            @NotNull final ByteBuffer buffer,
+            final int size,
+            @NotNull final WriteRateLimiter.Throttle throttle) throws IOException {
+        if (buffer.remaining() < size) {
+            flush(channel, buffer, throttle);
+        }
+    }
+
+    private static void flush(
+            @NotNull final DirectIo.Output channel,
+            @NotNull final ByteBuffer buffer,
+            @NotNull final WriteRateLimiter.Throttle throttle) throws IOException {
+        buffer.flip();
+        throttle.acquire(buffer.remaining());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * The smallest and the largest keys, both absent for an empty table.
+     */
+    private static final class KeyRange {
+        @Nullable
+        final ByteBuffer first;
+        @Nullable
+        final ByteBuffer last;
+
+        KeyRange(
+                @Nullable final ByteBuffer first,
+                @Nullable final ByteBuffer last) {
+            this.first = first;
+            this.last = last;
+        }
+    }
+}
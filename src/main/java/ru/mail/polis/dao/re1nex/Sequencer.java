@@ -0,0 +1,92 @@
+package ru.mail.polis.dao.re1nex;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Numbers the writes and tracks the latest write visible to {@link Snapshot}s.
+ * <p>
+ * Writes are applied concurrently, but published in the order of their sequence numbers,
+ * so a snapshot seeing a write sees every write preceding it as well.
+ * The {@link WriteAheadLog}s number the writes as they queue the records, so the logs follow the same order.
+ * Sequence numbers are not restored though: writes replayed from the logs are numbered zero.
+ * <p>
+ * Open {@link Snapshot}s are registered, so that the versions none of them can see are dropped
+ * as soon as they are overwritten, see {@link #horizon()}.
+ */
+final class Sequencer {
+    /**
+     * Sequence number seeing every write applied so far, published or not.
+     */
+    static final long LATEST = Long.MAX_VALUE;
+
+    // Spins before yielding to the writer being waited for
+    private static final int SPINS = 64;
+
+    private final AtomicLong assigned = new AtomicLong();
+    private final AtomicLong visible = new AtomicLong();
+    // Registered sequence number -> number of the snapshots registered with it
+    private final ConcurrentNavigableMap<Long, Integer> snapshots = new ConcurrentSkipListMap<>();
+
+    /**
+     * @param count number of the writes about to be applied together
+     * @return the first of their sequence numbers, the writes must be published afterwards
+     */
+    long next(final int count) {
+        return assigned.getAndAdd(count) + 1;
+    }
+
+    /**
+     * Makes the applied writes with the given range of sequence numbers visible at once
+     * as soon as all the preceding ones are published.
+     */
+    void publish(
+            final long first,
+            final long last) {
+        int spins = 0;
+        while (visible.get() != first - 1) {
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        visible.set(last);
+    }
+
+    /**
+     * @return sequence number of the latest write visible along with all the preceding ones
+     */
+    long visible() {
+        return visible.get();
+    }
+
+    /**
+     * Registers a snapshot to be taken at the {@link #visible()} sequence number read afterwards,
+     * the versions it sees are kept till it is released.
+     *
+     * @return sequence number to release the snapshot with
+     */
+    long register() {
+        final long sequence = visible.get();
+        snapshots.merge(sequence, 1, Integer::sum);
+        return sequence;
+    }
+
+    void release(final long registered) {
+        snapshots.computeIfPresent(registered, (sequence, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * @return sequence number no snapshot open or registered from now on is taken before,
+     * so of the versions not newer than it just the latest one can still be seen
+     */
+    long horizon() {
+        // Read before the registrations: a snapshot registered meanwhile is taken at this one or later
+        final long latest = visible.get();
+        final Map.Entry<Long, Integer> oldest = snapshots.firstEntry();
+        return oldest == null ? latest : Math.min(latest, oldest.getKey());
+    }
+}
@@ -0,0 +1,100 @@
+package ru.mail.polis.dao.re1nex;
+
+import com.google.common.collect.Lists;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Size-tiered compaction strategy.
+ * <p>
+ * Groups level 0 SSTables of similar size into tiers and picks a tier which has grown large enough to be merged.
+ * Only tables of adjacent generations form a tier, so the merged table takes the place of its inputs
+ * in the generation order and shadows exactly the same older tables.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    // Tables smaller than that are treated as equal to avoid many tiny tiers
+    private static final long MIN_TIER_SIZE = 4L * 1024 * 1024;
+    private static final double TIER_LOW = 0.5;
+    private static final double TIER_HIGH = 1.5;
+    private static final int MAX_TIER_TABLES = 32;
+
+    private final int minTierTables;
+
+    SizeTieredCompaction(final int minTierTables) {
+        this.minTierTables = minTierTables;
+    }
+
+    @Nullable
+    @Override
+    public Compaction select(@NotNull final List<SSTable> freshestFirst) {
+        List<SSTable> best = null;
+        long bestAverage = Long.MAX_VALUE;
+
+        List<SSTable> tier = new ArrayList<>();
+        long tierSize = 0;
+        for (final SSTable table : Lists.reverse(levelZero(freshestFirst))) {
+            if (!tier.isEmpty()
+                    && (tier.size() == MAX_TIER_TABLES || !fits(table.sizeInBytes(), tierSize / tier.size()))) {
+                // The cheapest tier gives the largest reduction of the table count per byte written
+                if (tier.size() >= minTierTables && tierSize / tier.size() < bestAverage) {
+                    best = tier;
+                    bestAverage = tierSize / tier.size();
+                }
+                tier = new ArrayList<>();
+                tierSize = 0;
+            }
+            tier.add(table);
+            tierSize += table.sizeInBytes();
+        }
+        if (tier.size() >= minTierTables && tierSize / tier.size() < bestAverage) {
+            best = tier;
+        }
+        return best == null ? null : new Compaction(best, 0);
+    }
+
+    @Nullable
+    @Override
+    public Compaction major(@NotNull final List<SSTable> freshestFirst) {
+        final List<SSTable> tables = levelZero(freshestFirst);
+        return tables.size() < 2 ? null : new Compaction(tables, 0);
+    }
+
+    /**
+     * Merges the table with all the staler ones, so the result takes the place of the table.
+     */
+    @NotNull
+    @Override
+    public Compaction purge(
+            @NotNull final List<SSTable> freshestFirst,
+            @NotNull final SSTable table) {
+        final List<SSTable> tables = levelZero(freshestFirst);
+        final int index = tables.indexOf(table);
+        if (index < 0) {
+            return new Compaction(List.of(table), table.level());
+        }
+        return new Compaction(tables.subList(index, tables.size()), 0);
+    }
+
+    @NotNull
+    private static List<SSTable> levelZero(@NotNull final List<SSTable> freshestFirst) {
+        final List<SSTable> result = new ArrayList<>(freshestFirst.size());
+        for (final SSTable table : freshestFirst) {
+            if (table.level() == 0) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    private static boolean fits(
+            final long size,
+            final long average) {
+        if (size < MIN_TIER_SIZE && average < MIN_TIER_SIZE) {
+            return true;
+        }
+        return size >= average * TIER_LOW && size <= average * TIER_HIGH;
+    }
+}
@@ -0,0 +1,112 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.Iters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Consistent point-in-time view of the {@link LsmDAO} taken by {@link LsmDAO#snapshot()}.
+ * <p>
+ * Sees every write visible when the snapshot was taken and none of the later ones,
+ * however long its iterators run. Writers and compactions are not blocked,
+ * the SSTables of the snapshot are kept on the disk until it is closed.
+ * Values expiring after the snapshot was taken stay visible in it.
+ * The snapshot must be closed, its iterators must not be used afterwards.
+ */
+public final class Snapshot implements Closeable {
+    @NotNull
+    private final TableSet tables;
+    private final long sequence;
+    @NotNull
+    private final Sequencer sequencer;
+    // Keeps the versions the snapshot sees in the MemTables
+    private final long registered;
+    // Epoch millis the expiring values are checked against
+    private final long time;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param tables     tables retained for the snapshot
+     * @param sequence   the latest write the snapshot sees
+     * @param registered registration of the snapshot in the sequencer
+     */
+    Snapshot(
+            @NotNull final TableSet tables,
+            final long sequence,
+            @NotNull final Sequencer sequencer,
+            final long registered) {
+        this.tables = tables;
+        this.sequence = sequence;
+        this.sequencer = sequencer;
+        this.registered = registered;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * @see ru.mail.polis.dao.DAO#iterator(ByteBuffer)
+     */
+    @NotNull
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        checkOpen();
+        return tables.iterator(from, sequence, time);
+    }
+
+    /**
+     * @see ru.mail.polis.dao.DAO#range(ByteBuffer, ByteBuffer)
+     */
+    @NotNull
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return Iters.untilKey(iterator(from), to);
+    }
+
+    /**
+     * @throws NoSuchElementException if there is no such key in the snapshot
+     * @see ru.mail.polis.dao.DAO#get(ByteBuffer)
+     */
+    @NotNull
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        checkOpen();
+        final Value value = tables.get(key, sequence);
+        if (value == null || !value.isAlive(time)) {
+            throw new NoSuchElementException("Not found");
+        }
+        return value.getData();
+    }
+
+    /**
+     * @return sequence number of the latest write the snapshot sees
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            sequencer.release(registered);
+            tables.release();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ru.mail.polis.dao.re1nex;
+
+/**
+ * Defines when the write-ahead log is forced to the disk.
+ */
+public enum SyncPolicy {
+    /**
+     * Records reach the OS page cache only: survive a process crash, but not a power loss.
+     */
+    NONE,
+    /**
+     * The log is forced in the background every {@link Config#getSyncIntervalMillis()}.
+     */
+    PERIODIC,
+    /**
+     * Every write returns after its record is forced,
+     * concurrent writers share a single {@code fsync}.
+     */
+    GROUP_COMMIT
+}
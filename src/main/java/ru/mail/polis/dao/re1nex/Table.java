@@ -0,0 +1,30 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Sorted source of {@link Cell}s: either a {@link MemTable} or an {@link SSTable}.
+ */
+interface Table {
+    /**
+     * @return cells starting at "from" key (inclusive) in ascending key order
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * @return value or tombstone stored by the key, {@code null} if the table knows nothing about the key
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key) throws IOException;
+
+    /**
+     * @return tables with greater generation hold newer data
+     */
+    long generation();
+}
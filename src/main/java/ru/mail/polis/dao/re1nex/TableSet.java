@@ -0,0 +1,196 @@
+package ru.mail.polis.dao.re1nex;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.Iters;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Immutable snapshot of the tables forming the storage.
+ * <p>
+ * Every transition produces a new snapshot, so readers never observe a half-applied swap.
+ * A {@link Snapshot} retains the SSTables of the set it is taken of and reads the MemTables
+ * up to its sequence number.
+ */
+final class TableSet {
+    @NotNull
+    final MemTable memTable;
+    // Frozen MemTables waiting for the flusher, the newest goes first
+    @NotNull
+    final List<MemTable> flushing;
+    // Generation -> table
+    @NotNull
+    final NavigableMap<Long, SSTable> ssTables;
+    // The same tables in the order of freshness
+    @NotNull
+    final List<SSTable> freshestFirst;
+
+    private TableSet(
+            @NotNull final MemTable memTable,
+            @NotNull final List<MemTable> flushing,
+            @NotNull final NavigableMap<Long, SSTable> ssTables) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableList(flushing);
+        this.ssTables = Collections.unmodifiableNavigableMap(ssTables);
+        final List<SSTable> sorted = new ArrayList<>(ssTables.values());
+        sorted.sort(SSTable.FRESHEST_FIRST);
+        this.freshestFirst = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * The records of every table are filtered by the range tombstones of the fresher ones.
+     *
+     * @param sequence the latest write to see
+     * @param now      epoch millis to skip the values expired by
+     * @return live records starting at "from" key, the freshest version of a key wins
+     */
+    @NotNull
+    Iterator<Record> iterator(
+            @NotNull final ByteBuffer from,
+            final long sequence,
+            final long now) throws IOException {
+        final List<Iterator<Cell>> sources = new ArrayList<>(flushing.size() + freshestFirst.size() + 1);
+        sources.add(memTable.iterator(from, sequence));
+        DeletedRanges fresher = DeletedRanges.of(memTable.rangeTombstones(sequence));
+        for (final MemTable frozen : flushing) {
+            sources.add(fresher.filter(frozen.iterator(from, sequence)));
+            fresher = fresher.with(frozen.rangeTombstones(sequence));
+        }
+        for (final SSTable table : freshestFirst) {
+            sources.add(fresher.filter(table.iterator(from)));
+            fresher = fresher.with(table.rangeTombstones());
+        }
+
+        final Iterator<Cell> fresh = Iters.mergeSorted(sources, Cell.COMPARATOR);
+        final Iterator<Cell> alive = Iterators.filter(fresh, cell -> cell.getValue().isAlive(now));
+        return Iterators.transform(alive, Cell::toRecord);
+    }
+
+    /**
+     * Looks the key up table by table from the freshest one, without merging iterators.
+     * SSTables rejecting the key by their Bloom filters cost no I/O.
+     *
+     * @param sequence the latest write to see
+     * @return the value, possibly expired, or tombstone from the first table knowing the key,
+     * {@code null} if none does
+     */
+    @Nullable
+    Value get(
+            @NotNull final ByteBuffer key,
+            final long sequence) throws IOException {
+        Value value = memTable.get(key, sequence);
+        for (final Iterator<MemTable> frozen = flushing.iterator(); value == null && frozen.hasNext(); ) {
+            value = frozen.next().get(key, sequence);
+        }
+        for (final Iterator<SSTable> table = freshestFirst.iterator(); value == null && table.hasNext(); ) {
+            value = table.next().get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Takes references to all the SSTables.
+     *
+     * @return {@code false} if any of the tables is closed already, then no reference is taken
+     */
+    boolean retain() throws IOException {
+        final List<SSTable> retained = new ArrayList<>(freshestFirst.size());
+        for (final SSTable table : freshestFirst) {
+            if (!table.retain()) {
+                release(retained);
+                return false;
+            }
+            retained.add(table);
+        }
+        return true;
+    }
+
+    /**
+     * Releases the references taken by {@link #retain()}.
+     */
+    void release() throws IOException {
+        release(freshestFirst);
+    }
+
+    @NotNull
+    static TableSet of(
+            @NotNull final MemTable memTable,
+            @NotNull final NavigableMap<Long, SSTable> ssTables) {
+        return new TableSet(memTable, new ArrayList<>(), new TreeMap<>(ssTables));
+    }
+
+    /**
+     * Moves the current MemTable to the flush queue and starts the fresh one.
+     */
+    @NotNull
+    TableSet freeze(@NotNull final MemTable fresh) {
+        final List<MemTable> newFlushing = new ArrayList<>(flushing.size() + 1);
+        newFlushing.add(memTable);
+        newFlushing.addAll(flushing);
+        return new TableSet(fresh, newFlushing, new TreeMap<>(ssTables));
+    }
+
+    /**
+     * Replaces the flushed MemTable with the resulting SSTable.
+     */
+    @NotNull
+    TableSet flushed(
+            @NotNull final MemTable flushed,
+            @NotNull final SSTable ssTable) {
+        final List<MemTable> newFlushing = new ArrayList<>(flushing);
+        if (!newFlushing.remove(flushed)) {
+            throw new IllegalStateException("MemTable " + flushed.generation() + " is not being flushed");
+        }
+        final NavigableMap<Long, SSTable> newSSTables = new TreeMap<>(ssTables);
+        newSSTables.put(ssTable.generation(), ssTable);
+        return new TableSet(memTable, newFlushing, newSSTables);
+    }
+
+    /**
+     * Replaces the merged SSTables with the compaction results.
+     */
+    @NotNull
+    TableSet compacted(
+            @NotNull final Collection<SSTable> merged,
+            @NotNull final Collection<SSTable> results) {
+        final NavigableMap<Long, SSTable> newSSTables = new TreeMap<>(ssTables);
+        for (final SSTable table : merged) {
+            if (newSSTables.remove(table.generation()) != table) {
+                throw new IllegalStateException("SSTable " + table.generation() + " is not live");
+            }
+        }
+        for (final SSTable result : results) {
+            newSSTables.put(result.generation(), result);
+        }
+        return new TableSet(memTable, new ArrayList<>(flushing), newSSTables);
+    }
+
+    private static void release(@NotNull final List<SSTable> tables) throws IOException {
+        IOException failure = null;
+        for (final SSTable table : tables) {
+            try {
+                table.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Stored value which is either live data or a tombstone.
+ * Data of a large value may live in the {@link ValueLog}, then the value also knows where.
+ * Data may expire at the given time, an expired value is read as a tombstone.
+ */
+final class Value {
+    /**
+     * Expiration time of the data living forever.
+     */
+    static final long NEVER = Long.MAX_VALUE;
+
+    @Nullable
+    private final ByteBuffer data;
+    @Nullable
+    private final ValueLog.Pointer pointer;
+    private final long expiresAt;
+
+    private Value(
+            @Nullable final ByteBuffer data,
+            @Nullable final ValueLog.Pointer pointer,
+            final long expiresAt) {
+        this.data = data;
+        this.pointer = pointer;
+        this.expiresAt = expiresAt;
+    }
+
+    @NotNull
+    static Value of(@NotNull final ByteBuffer data) {
+        return new Value(data, null, NEVER);
+    }
+
+    /**
+     * @param expiresAt epoch millis the data expires at
+     */
+    @NotNull
+    static Value of(
+            @NotNull final ByteBuffer data,
+            final long expiresAt) {
+        return new Value(data, null, expiresAt);
+    }
+
+    /**
+     * @param data      the value log view of the data
+     * @param pointer   location of the data in the value log
+     * @param expiresAt epoch millis the data expires at
+     */
+    @NotNull
+    static Value separated(
+            @NotNull final ByteBuffer data,
+            @NotNull final ValueLog.Pointer pointer,
+            final long expiresAt) {
+        return new Value(data, pointer, expiresAt);
+    }
+
+    @NotNull
+    static Value tombstone() {
+        return new Value(null, null, NEVER);
+    }
+
+    boolean isTombstone() {
+        return data == null;
+    }
+
+    /**
+     * @param now epoch millis
+     * @return whether the value holds data which has not expired by the given time
+     */
+    boolean isAlive(final long now) {
+        return data != null && expiresAt > now;
+    }
+
+    /**
+     * @return epoch millis the data expires at, {@link #NEVER} if it does not
+     */
+    long getExpiresAt() {
+        return expiresAt;
+    }
+
+    @NotNull
+    ByteBuffer getData() {
+        if (data == null) {
+            throw new IllegalStateException("Tombstone has no data");
+        }
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the value with the inline data copied onto the heap, so that it outlives the buffer it is a view of
+     */
+    @NotNull
+    Value detached() {
+        if (data == null || pointer != null) {
+            return this;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        return new Value(copy.flip(), null, expiresAt);
+    }
+
+    /**
+     * @return location of the data in the value log or {@code null} if the data is stored inline
+     */
+    @Nullable
+    ValueLog.Pointer getPointer() {
+        return pointer;
+    }
+}
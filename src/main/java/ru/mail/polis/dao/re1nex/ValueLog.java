@@ -0,0 +1,314 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Append-only segments holding the large values separated from the {@link SSTable} records.
+ * <p>
+ * Values of at least {@link Config#getValueLogThreshold()} bytes are appended to a fresh segment
+ * while their table is written and the table stores {@link Pointer}s to them instead,
+ * so compactions move pointers around rather than the values themselves.
+ * A segment is written along with a single table, forced before the table appears and never modified afterwards.
+ * Every table records how many bytes of every segment it references, a segment referenced by no table is removed.
+ * A segment whose referenced bytes fall below the configured share is garbage:
+ * compactions relocate its values to fresh segments until nothing references it.
+ * Segments are memory-mapped, so values are handed out as zero-copy views of the page cache,
+ * while they may be written through {@link DirectIo} to keep the page cache for the reads.
+ * Pointers carry the CRC32C of their values, so a corrupted value is detected by the reader.
+ */
+final class ValueLog {
+    private static final Logger log = LoggerFactory.getLogger(ValueLog.class);
+
+    static final String SUFFIX = ".vlog";
+    // Segments are mapped, so they have to stay well below 2 GB
+    private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+
+    /**
+     * Location and checksum of a value in the log.
+     */
+    static final class Pointer {
+        static final int SIZE = Long.BYTES + Integer.BYTES * 3;
+
+        final long segment;
+        final int offset;
+        final int length;
+        final int checksum;
+
+        Pointer(
+                final long segment,
+                final int offset,
+                final int length,
+                final int checksum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+        }
+    }
+
+    @NotNull
+    private final File storage;
+    // Segment -> mapped contents
+    @NotNull
+    private final ConcurrentMap<Long, ByteBuffer> segments = new ConcurrentHashMap<>();
+    // Segments are written through
+    @NotNull
+    private final DirectIo io;
+
+    ValueLog(
+            @NotNull final File storage,
+            @NotNull final DirectIo io) {
+        this.storage = storage;
+        this.io = io;
+    }
+
+    /**
+     * @return file name of the segment with the given id
+     */
+    @NotNull
+    static String fileName(final long segment) {
+        return segment + SUFFIX;
+    }
+
+    /**
+     * @return id of the segment stored in the file or -1 if it is not a segment
+     */
+    static long segmentOf(@NotNull final String fileName) {
+        return FileNames.generationOf(fileName, SUFFIX);
+    }
+
+    /**
+     * @return mapped contents of the segment, the segment is mapped on first access
+     */
+    @NotNull
+    ByteBuffer segment(final long segment) throws IOException {
+        final ByteBuffer contents = segments.get(segment);
+        if (contents != null) {
+            return contents;
+        }
+        try (FileChannel channel = FileChannel.open(file(segment).toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final ByteBuffer raced = segments.putIfAbsent(segment, mapped);
+            return raced == null ? mapped : raced;
+        } catch (NoSuchFileException e) {
+            throw new IOException("Missing value log segment " + segment, e);
+        }
+    }
+
+    /**
+     * @param tables       the live tables
+     * @param garbageRatio share of unreferenced bytes making a segment garbage
+     * @return segments referenced by the tables whose values are to be relocated
+     */
+    @NotNull
+    Set<Long> garbage(
+            @NotNull final Collection<SSTable> tables,
+            final double garbageRatio) {
+        final Map<Long, Long> referenced = new HashMap<>();
+        for (final SSTable table : tables) {
+            table.valueLogBytes().forEach((segment, bytes) -> referenced.merge(segment, bytes, Long::sum));
+        }
+        final Set<Long> garbage = new HashSet<>();
+        referenced.forEach((segment, bytes) -> {
+            final ByteBuffer contents = segments.get(segment);
+            if (contents != null && contents.capacity() - bytes > contents.capacity() * garbageRatio) {
+                garbage.add(segment);
+            }
+        });
+        return garbage;
+    }
+
+    /**
+     * Removes the candidate segments no live table references anymore.
+     */
+    void removeUnreferenced(
+            @NotNull final Collection<Long> candidates,
+            @NotNull final Collection<SSTable> live) throws IOException {
+        final Set<Long> unreferenced = new HashSet<>(candidates);
+        for (final SSTable table : live) {
+            unreferenced.removeAll(table.valueLogBytes().keySet());
+        }
+        for (final long segment : unreferenced) {
+            // Readers of the removed tables keep their own mappings
+            segments.remove(segment);
+            if (Files.deleteIfExists(file(segment).toPath())) {
+                log.info("Removing value log segment {}", segment);
+            }
+        }
+    }
+
+    /**
+     * Separates the large values of the cells being written to a table.
+     *
+     * @param threshold size of the values to separate, zero keeps the values inline
+     * @param relocated garbage segments whose values are moved to the fresh segment
+     * @param ids       source of the fresh segment ids
+     * @param throttle  limits the write rate
+     */
+    @NotNull
+    Writer writer(
+            @NotNull final Iterator<Cell> cells,
+            final int threshold,
+            @NotNull final Set<Long> relocated,
+            @NotNull final LongSupplier ids,
+            @NotNull final WriteRateLimiter.Throttle throttle) {
+        return new Writer(cells, threshold, relocated, ids, throttle);
+    }
+
+    @NotNull
+    private File file(final long segment) {
+        return new File(storage, fileName(segment));
+    }
+
+    /**
+     * Hands the cells over to the table writer replacing the separated values with pointers.
+     * The segments are forced and mapped once the cells are exhausted, before the table is completed.
+     * I/O errors are thrown as {@link UncheckedIOException}s.
+     */
+    final class Writer implements Iterator<Cell>, Closeable {
+        @NotNull
+        private final Iterator<Cell> cells;
+        private final int threshold;
+        @NotNull
+        private final Set<Long> relocated;
+        @NotNull
+        private final LongSupplier ids;
+        @NotNull
+        private final WriteRateLimiter.Throttle throttle;
+        // Segments written so far
+        private final List<Long> written = new ArrayList<>();
+        @Nullable
+        private DirectIo.Output channel;
+        private long segment;
+        private int offset;
+        private boolean finished;
+
+        private Writer(
+                @NotNull final Iterator<Cell> cells,
+                final int threshold,
+                @NotNull final Set<Long> relocated,
+                @NotNull final LongSupplier ids,
+                @NotNull final WriteRateLimiter.Throttle throttle) {
+            this.cells = cells;
+            this.threshold = threshold;
+            this.relocated = relocated;
+            this.ids = ids;
+            this.throttle = throttle;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (cells.hasNext()) {
+                return true;
+            }
+            if (!finished) {
+                try {
+                    completeSegment();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                finished = true;
+            }
+            return false;
+        }
+
+        @Override
+        public Cell next() {
+            final Cell cell = cells.next();
+            final Value value = cell.getValue();
+            if (value.isTombstone()) {
+                return cell;
+            }
+            final Pointer pointer = value.getPointer();
+            if (pointer != null && !relocated.contains(pointer.segment)) {
+                return cell;
+            }
+
+            final ByteBuffer data = value.getData();
+            if (threshold == 0 || data.remaining() < threshold) {
+                return pointer == null ? cell : new Cell(cell.getKey(), Value.of(data, value.getExpiresAt()));
+            }
+            try {
+                return new Cell(
+                        cell.getKey(),
+                        Value.separated(data, append(data.duplicate()), value.getExpiresAt()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Removes the segments of the table which has not been written.
+         */
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                return;
+            }
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            for (final long id : written) {
+                segments.remove(id);
+                Files.deleteIfExists(file(id).toPath());
+            }
+        }
+
+        @NotNull
+        private Pointer append(@NotNull final ByteBuffer data) throws IOException {
+            if (channel != null && offset + (long) data.remaining() > SEGMENT_SIZE) {
+                completeSegment();
+            }
+            if (channel == null) {
+                segment = ids.getAsLong();
+                written.add(segment);
+                channel = io.output(
+                        file(segment).toPath(),
+                        StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE);
+                offset = 0;
+            }
+
+            final Pointer pointer = new Pointer(segment, offset, data.remaining(), Checksums.of(data));
+            throttle.acquire(data.remaining());
+            channel.write(data);
+            offset += pointer.length;
+            return pointer;
+        }
+
+        private void completeSegment() throws IOException {
+            if (channel == null) {
+                return;
+            }
+            channel.complete();
+            channel.close();
+            channel = null;
+            segment(segment);
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.WriteBatch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only log of the writes applied to a single {@link MemTable}.
+ * <p>
+ * Record layout:
+ * <pre>
+ * write: sequence:long keyLength:int key valueLength:int value crc:int
+ * batch: sequence:long -2:int count:int [keyLength:int key valueLength:int value]* crc:int
+ * </pre>
+ * The value length is -1 for tombstones, while -2 is followed by {@code toLength:int to}
+ * for the range tombstones starting at the key and -3 is followed by {@code expiresAt:long valueLength:int value}
+ * for the expiring values.
+ * The {@link Sequencer} numbers a record, the first write of a batch that is, as the record is queued,
+ * so the records follow in the order of their sequence numbers and the log replays the writes in the order
+ * the snapshots saw them. The checksum is the CRC32C of the record past the sequence number XOR the CRC32C
+ * of the sequence number, so that the writers checksum their records outside of the lock.
+ * Replay stops at the first torn or corrupted record,
+ * so a {@link WriteBatch} is restored either entirely or not at all.
+ * Writers append with group commit: the first writer to come becomes the leader
+ * and writes the records of all the writers queued behind it
+ * with a single gathering {@link FileChannel#write(ByteBuffer[])} followed by
+ * a single {@link FileChannel#force(boolean)} if {@link SyncPolicy#GROUP_COMMIT} is used.
+ */
+final class WriteAheadLog implements Closeable {
+    static final String SUFFIX = ".log";
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private static final int TOMBSTONE_LENGTH = -1;
+    private static final int RANGE_TOMBSTONE_LENGTH = -2;
+    private static final int EXPIRING_LENGTH = -3;
+    // Takes the place of the key length
+    private static final int BATCH_MARKER = -2;
+
+    @NotNull
+    private final File file;
+    @NotNull
+    private final FileChannel channel;
+    @NotNull
+    private final SyncPolicy syncPolicy;
+    @NotNull
+    private final Sequencer sequencer;
+
+    // Guards the fields below
+    private final Object lock = new Object();
+    @NotNull
+    private List<ByteBuffer> pending = new ArrayList<>();
+    // Number of records queued so far
+    private long appended;
+    // Number of records written by the leaders
+    private long written;
+    private boolean leaderActive;
+    // Once a write fails the tail of the log is unknown, so the log accepts nothing more
+    @Nullable
+    private IOException failure;
+
+    private WriteAheadLog(
+            @NotNull final File file,
+            @NotNull final FileChannel channel,
+            @NotNull final SyncPolicy syncPolicy,
+            @NotNull final Sequencer sequencer) {
+        this.file = file;
+        this.channel = channel;
+        this.syncPolicy = syncPolicy;
+        this.sequencer = sequencer;
+    }
+
+    /**
+     * Creates an empty log for the MemTable of the given generation numbering the writes with the sequencer.
+     */
+    @NotNull
+    static WriteAheadLog create(
+            @NotNull final File storage,
+            final long generation,
+            @NotNull final SyncPolicy syncPolicy,
+            @NotNull final Sequencer sequencer) throws IOException {
+        final File file = new File(storage, fileName(generation));
+        final FileChannel channel = FileChannel.open(
+                file.toPath(),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        return new WriteAheadLog(file, channel, syncPolicy, sequencer);
+    }
+
+    /**
+     * Applies all the complete records of the log to the MemTable.
+     * A torn record at the tail left by a crash is skipped, so is everything after a corrupted record
+     * or a record out of the order of the sequence numbers.
+     */
+    static void replay(
+            @NotNull final File file,
+            @NotNull final MemTable memTable) throws IOException {
+        final ByteBuffer records;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        long previous = 0;
+        while (records.hasRemaining()) {
+            final int start = records.position();
+            final WriteBatch batch = read(records);
+            if (batch == null || records.getLong(start) <= previous) {
+                records.position(start);
+                break;
+            }
+            previous = records.getLong(start);
+            memTable.write(batch);
+        }
+
+        if (records.hasRemaining()) {
+            log.warn("Skipped {} bytes of torn or corrupted records at the tail of {}", records.remaining(), file);
+        }
+    }
+
+    /**
+     * @return file name of the log for the MemTable of the given generation
+     */
+    @NotNull
+    static String fileName(final long generation) {
+        return generation + SUFFIX;
+    }
+
+    /**
+     * @return generation of the MemTable logged to the file or -1 if it is not a log
+     */
+    static long generationOf(@NotNull final String fileName) {
+        return FileNames.generationOf(fileName, SUFFIX);
+    }
+
+    /**
+     * Appends the write and numbers it, the sequence number is to be published once the write is applied.
+     * The writes failed to be appended are published by the log.
+     *
+     * @param expiresAt epoch millis the value expires at or {@link Value#NEVER}
+     * @return sequence number of the write
+     */
+    long upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long expiresAt) throws IOException {
+        final ByteBuffer keyHeader = header(key);
+        final ByteBuffer valueHeader = valueHeader(value, expiresAt);
+        final ByteBuffer crc = checksum(keyHeader, key, valueHeader, value);
+        return append(1, sequenceHeader(), keyHeader, key.duplicate(), valueHeader, value.duplicate(), crc);
+    }
+
+    /**
+     * @return sequence number of the tombstone
+     */
+    long remove(@NotNull final ByteBuffer key) throws IOException {
+        final ByteBuffer keyHeader = header(key);
+        final ByteBuffer valueHeader = ByteBuffer.allocate(Integer.BYTES).putInt(0, TOMBSTONE_LENGTH);
+        return append(1, sequenceHeader(), keyHeader, key.duplicate(), valueHeader,
+                checksum(keyHeader, key, valueHeader));
+    }
+
+    /**
+     * @return sequence number of the range tombstone
+     */
+    long removeRange(
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        final ByteBuffer fromHeader = header(from);
+        final ByteBuffer toHeader = rangeHeader(to);
+        return append(1, sequenceHeader(), fromHeader, from.duplicate(), toHeader, to.duplicate(),
+                checksum(fromHeader, from, toHeader, to));
+    }
+
+    /**
+     * Appends the writes of the batch as a single record.
+     *
+     * @return sequence number of the first write of the batch, the rest are numbered consecutively
+     */
+    long write(@NotNull final WriteBatch batch) throws IOException {
+        final List<ByteBuffer> record = new ArrayList<>(batch.size() * 4 + 3);
+        record.add(sequenceHeader());
+        record.add(ByteBuffer.allocate(Integer.BYTES * 2)
+                .putInt(0, BATCH_MARKER)
+                .putInt(Integer.BYTES, batch.size()));
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(
+                    @NotNull final ByteBuffer key,
+                    @NotNull final ByteBuffer value) {
+                record.add(header(key));
+                record.add(key);
+                record.add(valueHeader(value, Value.NEVER));
+                record.add(value);
+            }
+
+            @Override
+            public void upsert(
+                    @NotNull final ByteBuffer key,
+                    @NotNull final ByteBuffer value,
+                    @NotNull final Instant expiresAt) {
+                record.add(header(key));
+                record.add(key);
+                record.add(valueHeader(value, expiresAt.toEpochMilli()));
+                record.add(value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) {
+                record.add(header(key));
+                record.add(key);
+                record.add(ByteBuffer.allocate(Integer.BYTES).putInt(0, TOMBSTONE_LENGTH));
+            }
+
+            @Override
+            public void removeRange(
+                    @NotNull final ByteBuffer from,
+                    @NotNull final ByteBuffer to) {
+                record.add(header(from));
+                record.add(from);
+                record.add(rangeHeader(to));
+                record.add(to);
+            }
+        });
+        final ByteBuffer[] parts = record.toArray(new ByteBuffer[record.size() + 1]);
+        parts[record.size()] = checksum(record.subList(1, record.size()).toArray(new ByteBuffer[0]));
+        return append(batch.size(), parts);
+    }
+
+    /**
+     * @return whether a write has failed, so the log accepts nothing more
+     */
+    boolean isBroken() {
+        synchronized (lock) {
+            return failure != null;
+        }
+    }
+
+    /**
+     * Forces the records written so far to the disk.
+     */
+    void sync() throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // The log has been discarded concurrently, nothing to sync
+        }
+    }
+
+    /**
+     * Closes and removes the log once its MemTable is persisted.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @NotNull
+    private static ByteBuffer sequenceHeader() {
+        return ByteBuffer.allocate(Long.BYTES);
+    }
+
+    @NotNull
+    private static ByteBuffer header(@NotNull final ByteBuffer key) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, key.remaining());
+    }
+
+    @NotNull
+    private static ByteBuffer valueHeader(
+            @NotNull final ByteBuffer value,
+            final long expiresAt) {
+        if (expiresAt == Value.NEVER) {
+            return ByteBuffer.allocate(Integer.BYTES).putInt(0, value.remaining());
+        }
+        return ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES)
+                .putInt(0, EXPIRING_LENGTH)
+                .putLong(Integer.BYTES, expiresAt)
+                .putInt(Integer.BYTES + Long.BYTES, value.remaining());
+    }
+
+    @NotNull
+    private static ByteBuffer rangeHeader(@NotNull final ByteBuffer to) {
+        return ByteBuffer.allocate(Integer.BYTES * 2)
+                .putInt(0, RANGE_TOMBSTONE_LENGTH)
+                .putInt(Integer.BYTES, to.remaining());
+    }
+
+    /**
+     * @return checksum of the record parts, computed by the writer rather than the group commit leader
+     */
+    @NotNull
+    private static ByteBuffer checksum(@NotNull final ByteBuffer... parts) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, Checksums.of(parts));
+    }
+
+    /**
+     * Reads a single write or a batch as a batch.
+     *
+     * @return {@code null} if the record is torn or corrupted
+     */
+    @Nullable
+    private static WriteBatch read(@NotNull final ByteBuffer records) {
+        if (records.remaining() < Long.BYTES + Integer.BYTES * 2) {
+            return null;
+        }
+        final ByteBuffer sequence = slice(records, Long.BYTES);
+        final int start = records.position();
+        int count = 1;
+        if (records.getInt(start) == BATCH_MARKER) {
+            records.getInt();
+            count = records.getInt();
+        }
+
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < count; i++) {
+            if (!readWrite(records, batch)) {
+                return null;
+            }
+        }
+        final int end = records.position();
+        if (records.remaining() < Integer.BYTES
+                || records.getInt() != (Checksums.of(records.duplicate().position(start).limit(end))
+                ^ Checksums.of(sequence))) {
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Reads a single write into the batch.
+     *
+     * @return {@code false} if the write is torn
+     */
+    private static boolean readWrite(
+            @NotNull final ByteBuffer records,
+            @NotNull final WriteBatch batch) {
+        if (records.remaining() < Integer.BYTES) {
+            return false;
+        }
+        final int keyLength = records.getInt();
+        if (keyLength < 0 || records.remaining() < (long) keyLength + Integer.BYTES) {
+            return false;
+        }
+        final ByteBuffer key = slice(records, keyLength);
+        int valueLength = records.getInt();
+        if (valueLength == TOMBSTONE_LENGTH) {
+            batch.remove(key);
+            return true;
+        }
+        if (valueLength == RANGE_TOMBSTONE_LENGTH) {
+            if (records.remaining() < Integer.BYTES) {
+                return false;
+            }
+            final int toLength = records.getInt();
+            if (toLength < 0 || records.remaining() < toLength) {
+                return false;
+            }
+            batch.removeRange(key, slice(records, toLength));
+            return true;
+        }
+        long expiresAt = Value.NEVER;
+        if (valueLength == EXPIRING_LENGTH) {
+            if (records.remaining() < Long.BYTES + Integer.BYTES) {
+                return false;
+            }
+            expiresAt = records.getLong();
+            valueLength = records.getInt();
+        }
+        if (valueLength < 0 || records.remaining() < valueLength) {
+            return false;
+        }
+        final ByteBuffer value = slice(records, valueLength);
+        if (expiresAt == Value.NEVER) {
+            batch.upsert(key, value);
+        } else {
+            batch.upsert(key, value, Instant.ofEpochMilli(expiresAt));
+        }
+        return true;
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer records,
+            final int length) {
+        final ByteBuffer result = records.duplicate().limit(records.position() + length).slice();
+        records.position(records.position() + length);
+        return result;
+    }
+
+    /**
+     * Numbers the record and appends it.
+     *
+     * @param count  number of the writes in the record
+     * @param record the sequence number header, the parts and the checksum of the parts
+     * @return sequence number of the first write
+     */
+    private long append(
+            final int count,
+            @NotNull final ByteBuffer... record) throws IOException {
+        final long first;
+        final long ticket;
+        synchronized (lock) {
+            // Numbered in the order of the records
+            first = sequencer.next(count);
+            record[0].putLong(0, first);
+            final ByteBuffer crc = record[record.length - 1];
+            crc.putInt(0, crc.getInt(0) ^ Checksums.of(record[0]));
+            for (final ByteBuffer part : record) {
+                pending.add(part);
+            }
+            ticket = ++appended;
+        }
+        try {
+            await(ticket);
+        } catch (IOException e) {
+            // Nothing is applied, but the later writes must not wait for these
+            sequencer.publish(first, first + count - 1);
+            throw e;
+        }
+        return first;
+    }
+
+    /**
+     * Waits for the record with the given ticket to be written, writing the queued ones as the leader if there is none.
+     * The record is queued already and is written anyway, so the wait is not interrupted,
+     * the interrupt status is restored afterwards instead.
+     */
+    private void await(final long ticket) throws IOException {
+        // Cleared meanwhile, since the channel is closed by an interrupt of the leader writing to it
+        boolean interrupted = Thread.interrupted();
+        try {
+            final List<ByteBuffer> batch;
+            final long batchEnd;
+            synchronized (lock) {
+                while (true) {
+                    if (written >= ticket) {
+                        // Some leader has already written our record
+                        return;
+                    }
+                    if (failure != null) {
+                        throw new IOException("Log " + file + " is broken", failure);
+                    }
+                    if (!leaderActive) {
+                        break;
+                    }
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                // Become the leader and take everything queued so far
+                leaderActive = true;
+                batch = pending;
+                batchEnd = appended;
+                pending = new ArrayList<>();
+            }
+
+            IOException error = null;
+            try {
+                write(batch.toArray(new ByteBuffer[0]));
+                if (syncPolicy == SyncPolicy.GROUP_COMMIT) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (lock) {
+                leaderActive = false;
+                if (error == null) {
+                    written = batchEnd;
+                } else {
+                    failure = error;
+                }
+                lock.notifyAll();
+            }
+
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void write(@NotNull final ByteBuffer[] buffers) throws IOException {
+        int first = 0;
+        while (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+}
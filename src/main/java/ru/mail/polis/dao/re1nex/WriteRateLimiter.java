@@ -0,0 +1,125 @@
+package ru.mail.polis.dao.re1nex;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the disk write rate of flushes and compactions.
+ * <p>
+ * Tokens are bytes refilled at the configured rate, a write takes its size even beyond zero
+ * and the next one waits for the debt to be repaid, so writes larger than the bucket pass too.
+ * Flushes go first: compaction writes wait while any flush is waiting.
+ */
+final class WriteRateLimiter {
+    // Bucket capacity in terms of the rate, bounds the burst after an idle period
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Whose write is throttled.
+     */
+    enum Priority {
+        FLUSH,
+        COMPACTION
+    }
+
+    /**
+     * Rate limiter bound to a writer.
+     */
+    @FunctionalInterface
+    interface Throttle {
+        Throttle NONE = bytes -> {
+            // Unlimited
+        };
+
+        /**
+         * Blocks until the bytes are allowed to be written.
+         */
+        void acquire(long bytes) throws IOException;
+    }
+
+    // Guards the fields below
+    private final Object lock = new Object();
+    // Zero means unlimited
+    private long bytesPerSecond;
+    private double available;
+    private long refilledAt;
+    private int flushesWaiting;
+
+    WriteRateLimiter(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * @param bytesPerSecond new write rate, zero disables the limit
+     */
+    void setRate(final long bytesPerSecond) {
+        synchronized (lock) {
+            refill(System.nanoTime());
+            this.bytesPerSecond = bytesPerSecond;
+            lock.notifyAll();
+        }
+    }
+
+    long getRate() {
+        synchronized (lock) {
+            return bytesPerSecond;
+        }
+    }
+
+    @NotNull
+    Throttle throttle(@NotNull final Priority priority) {
+        return bytes -> acquire(bytes, priority);
+    }
+
+    private void acquire(
+            final long bytes,
+            @NotNull final Priority priority) throws IOException {
+        final boolean flush = priority == Priority.FLUSH;
+        synchronized (lock) {
+            if (flush) {
+                flushesWaiting++;
+            }
+            try {
+                while (bytesPerSecond > 0) {
+                    refill(System.nanoTime());
+                    final boolean blockedByFlush = !flush && flushesWaiting > 0;
+                    if (!blockedByFlush && available >= 0) {
+                        available -= bytes;
+                        return;
+                    }
+
+                    if (blockedByFlush) {
+                        // Woken up once the flush is served
+                        lock.wait();
+                    } else {
+                        final long nanos = (long) (-available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond) + 1;
+                        TimeUnit.NANOSECONDS.timedWait(lock, nanos);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the write rate limiter");
+            } finally {
+                if (flush) {
+                    flushesWaiting--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void refill(final long now) {
+        if (bytesPerSecond > 0) {
+            final double capacity = (double) bytesPerSecond * BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+            final double refilled = (double) bytesPerSecond * (now - refilledAt) / TimeUnit.SECONDS.toNanos(1);
+            available = Math.min(capacity, available + refilled);
+        } else {
+            available = 0;
+        }
+        refilledAt = now;
+    }
+}
@@ -18,6 +18,9 @@ package ru.mail.polis.service;
 
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+import ru.mail.polis.dao.re1nex.MemoryBudget;
+import ru.mail.polis.service.re1nex.BasicService;
 
 import java.io.IOException;
 import java.util.Set;
@@ -55,6 +58,10 @@ public final class ServiceFactory {
             throw new IllegalArgumentException("Port out of range");
         }
 
-        throw new UnsupportedOperationException("Implement me!");
+        // The request bodies share the memory with the storage unless the storage keeps no account of it
+        final MemoryBudget budget = dao instanceof LsmDAO
+                ? ((LsmDAO) dao).getMemoryBudget()
+                : new MemoryBudget(MAX_HEAP / 4);
+        return new BasicService(port, dao, budget);
     }
 }
@@ -0,0 +1,164 @@
+package ru.mail.polis.service.re1nex;
+
+import one.nio.http.HttpServer;
+import one.nio.http.HttpServerConfig;
+import one.nio.http.HttpSession;
+import one.nio.http.Param;
+import one.nio.http.Path;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.server.AcceptorConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.re1nex.MemoryBudget;
+import ru.mail.polis.dao.re1nex.MemoryLimitException;
+import ru.mail.polis.service.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.NoSuchElementException;
+
+/**
+ * Single node {@link Service} serving the entities straight from the {@link DAO}.
+ * <p>
+ * {@code PUT /v0/entity?id=<ID>&ttl=<seconds>} stores the value which is removed once the time to live passes.
+ * The bodies of the requests in flight are charged to the {@link MemoryBudget},
+ * a request is rejected with {@code 503} if the budget is exhausted
+ * or the storage rejects the write for lack of memory.
+ */
+public final class BasicService extends HttpServer implements Service {
+    private static final Logger log = LoggerFactory.getLogger(BasicService.class);
+
+    @NotNull
+    private final DAO dao;
+    @NotNull
+    private final MemoryBudget budget;
+
+    /**
+     * @param port   port to bind the HTTP server to
+     * @param dao    storage of the entities
+     * @param budget memory the request bodies are charged to
+     */
+    public BasicService(
+            final int port,
+            @NotNull final DAO dao,
+            @NotNull final MemoryBudget budget) throws IOException {
+        super(config(port));
+        this.dao = dao;
+        this.budget = budget;
+    }
+
+    @NotNull
+    private static HttpServerConfig config(final int port) {
+        final AcceptorConfig acceptor = new AcceptorConfig();
+        acceptor.port = port;
+        acceptor.deferAccept = true;
+        acceptor.reusePort = true;
+        final HttpServerConfig config = new HttpServerConfig();
+        config.acceptors = new AcceptorConfig[]{acceptor};
+        return config;
+    }
+
+    @Path("/v0/status")
+    public Response status() {
+        return Response.ok(Response.EMPTY);
+    }
+
+    /**
+     * Serves the entity by its id.
+     *
+     * @param id  non empty entity id
+     * @param ttl time to live of the upserted value in seconds, the value lives forever if absent
+     */
+    @Path("/v0/entity")
+    public Response entity(
+            @Param(value = "id", required = true) final String id,
+            @Param("ttl") final String ttl,
+            @NotNull final Request request) {
+        if (id.isEmpty()) {
+            return new Response(Response.BAD_REQUEST, Response.EMPTY);
+        }
+        final ByteBuffer key = ByteBuffer.wrap(id.getBytes(StandardCharsets.UTF_8));
+        try {
+            switch (request.getMethod()) {
+                case Request.METHOD_GET:
+                    return get(key);
+                case Request.METHOD_PUT:
+                    return upsert(key, request.getBody(), ttl);
+                case Request.METHOD_DELETE:
+                    dao.remove(key);
+                    return new Response(Response.ACCEPTED, Response.EMPTY);
+                default:
+                    return new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY);
+            }
+        } catch (MemoryLimitException e) {
+            log.warn("Rejected {} of entity {}: {}", request.getMethodName(), id, e.getMessage());
+            return new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        } catch (IOException e) {
+            log.error("Can't serve {} of entity {}", request.getMethodName(), id, e);
+            return new Response(Response.INTERNAL_ERROR, Response.EMPTY);
+        }
+    }
+
+    @Override
+    public void handleDefault(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) throws IOException {
+        session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+    }
+
+    @NotNull
+    private Response get(@NotNull final ByteBuffer key) throws IOException {
+        final ByteBuffer value;
+        try {
+            value = dao.get(key);
+        } catch (NoSuchElementException e) {
+            return new Response(Response.NOT_FOUND, Response.EMPTY);
+        }
+        final byte[] body = new byte[value.remaining()];
+        value.get(body);
+        return Response.ok(body);
+    }
+
+    @NotNull
+    private Response upsert(
+            @NotNull final ByteBuffer key,
+            @Nullable final byte[] body,
+            @Nullable final String ttl) throws IOException {
+        final ByteBuffer value = ByteBuffer.wrap(body == null ? Response.EMPTY : body);
+        Duration duration = null;
+        if (ttl != null) {
+            final long seconds;
+            try {
+                seconds = Long.parseLong(ttl);
+            } catch (NumberFormatException e) {
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+            if (seconds <= 0) {
+                return new Response(Response.BAD_REQUEST, Response.EMPTY);
+            }
+            duration = Duration.ofSeconds(seconds);
+        }
+
+        // The body stays on the heap until the storage copies it
+        final long bytes = value.remaining();
+        if (!budget.tryReserve(MemoryBudget.Pool.REQUESTS, bytes)) {
+            return new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        }
+        try {
+            if (duration == null) {
+                dao.upsert(key, value);
+            } else {
+                dao.upsert(key, value, duration);
+            }
+        } finally {
+            budget.release(MemoryBudget.Pool.REQUESTS, bytes);
+        }
+        return new Response(Response.CREATED, Response.EMPTY);
+    }
+}
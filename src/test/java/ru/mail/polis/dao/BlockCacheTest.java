@@ -0,0 +1,110 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Compression;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Block cache hit and miss accounting tests.
+ */
+class BlockCacheTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    @Test
+    void compressedBlocksAreCached(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .compression(Compression.DEFLATE)
+                .build();
+        final List<ByteBuffer> keys = fill(data, config);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final LsmDAO lsm = (LsmDAO) dao;
+            final ByteBuffer key = keys.get(KEYS / 2);
+            final ByteBuffer value = dao.get(key);
+
+            final long hits = lsm.getBlockCacheHits();
+            final long misses = lsm.getBlockCacheMisses();
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(key));
+            assertEquals(hits + 2, lsm.getBlockCacheHits());
+            assertEquals(misses, lsm.getBlockCacheMisses());
+        }
+    }
+
+    @Test
+    void valuesOutliveSlots(@TempDir File data) throws IOException {
+        // A single slot per segment, so the slots are reused by every other block read
+        final Config config = Config.builder()
+                .compression(Compression.DEFLATE)
+                .blockCacheSize(16L * 12 * 1024)
+                .build();
+        final List<ByteBuffer> keys = fill(data, config);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final LsmDAO lsm = (LsmDAO) dao;
+            final ByteBuffer key = keys.get(KEYS / 2);
+            final ByteBuffer expected = copy(dao.get(key));
+            final long hits = lsm.getBlockCacheHits();
+            final ByteBuffer value = dao.get(key);
+            assertEquals(hits + 1, lsm.getBlockCacheHits());
+
+            for (final ByteBuffer other : keys) {
+                dao.get(other);
+            }
+            assertEquals(expected, value);
+        }
+    }
+
+    @Test
+    void disabled(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .compression(Compression.DEFLATE)
+                .blockCacheSize(0)
+                .build();
+        final List<ByteBuffer> keys = fill(data, config);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final LsmDAO lsm = (LsmDAO) dao;
+            final ByteBuffer key = keys.get(KEYS / 2);
+            final long misses = lsm.getBlockCacheMisses();
+            dao.get(key);
+            dao.get(key);
+            assertEquals(0, lsm.getBlockCacheHits());
+            assertEquals(misses + 2, lsm.getBlockCacheMisses());
+        }
+    }
+
+    private static ByteBuffer copy(final ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        return copy.flip();
+    }
+
+    private static List<ByteBuffer> fill(
+            final File data,
+            final Config config) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final byte[] value = new byte[1024];
+                Arrays.fill(value, (byte) i);
+                final ByteBuffer key = randomKeyBuffer();
+                dao.upsert(key, ByteBuffer.wrap(value));
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Files;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Compression;
+import ru.mail.polis.dao.re1nex.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Block-based SSTable tests: compression, seeks and key prefix compression.
+ */
+class BlockCompressionTest extends TestBase {
+    private static final int VALUE_SIZE = 1024;
+    private static final int KEYS = 2000;
+
+    @Test
+    void compressed(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .compression(Compression.DEFLATE)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                // Well compressible
+                final byte[] value = new byte[VALUE_SIZE];
+                Arrays.fill(value, (byte) i);
+                final ByteBuffer key = randomKeyBuffer();
+                dao.upsert(key, ByteBuffer.wrap(value));
+                expected.put(key, ByteBuffer.wrap(value));
+            }
+        }
+
+        assertTrue(Files.directorySize(data) < KEYS * VALUE_SIZE / 4);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void seekNone(@TempDir File data) throws IOException {
+        seek(data, Compression.NONE);
+    }
+
+    @Test
+    void seekDeflate(@TempDir File data) throws IOException {
+        seek(data, Compression.DEFLATE);
+    }
+
+    @Test
+    void sharedPrefixes(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        long keyBytes = 0;
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS * 4; i += 2) {
+                final ByteBuffer key = ByteBuffer.wrap(
+                        String.format("tenant-%08d/entity-%08d", i / 1000, i).getBytes(StandardCharsets.UTF_8));
+                final ByteBuffer value = ByteBuffer.allocate(Long.BYTES).putLong(0, i);
+                dao.upsert(key, value);
+                expected.put(key, value);
+                keyBytes += key.remaining();
+            }
+        }
+
+        // Keys are delta-encoded
+        assertTrue(Files.directorySize(data) < keyBytes);
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+            for (int i = 1; i < KEYS * 4; i += 2) {
+                // Absent keys between the stored ones
+                final ByteBuffer from = ByteBuffer.wrap(
+                        String.format("tenant-%08d/entity-%08d", i / 1000, i).getBytes(StandardCharsets.UTF_8));
+                final Map.Entry<ByteBuffer, ByteBuffer> next = expected.higherEntry(from);
+                final Iterator<Record> records = dao.iterator(from);
+                if (next == null) {
+                    assertFalse(records.hasNext());
+                } else {
+                    assertEquals(next.getKey(), records.next().getKey());
+                }
+            }
+        }
+    }
+
+    private static void seek(
+            final File data,
+            final Compression compression) throws IOException {
+        // Small blocks of random values, which are stored uncompressed
+        final Config config = Config.builder()
+                .compression(compression)
+                .blockSize(VALUE_SIZE * 3)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            check(dao, expected);
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer from = randomKeyBuffer();
+                final Iterator<Record> records = dao.iterator(from);
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.tailMap(from).entrySet()) {
+                    final Record record = records.next();
+                    assertEquals(entry.getKey(), record.getKey());
+                    assertEquals(entry.getValue(), record.getValue());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            assertEquals(entry.getValue(), dao.iterator(entry.getKey()).next().getValue());
+        }
+    }
+}
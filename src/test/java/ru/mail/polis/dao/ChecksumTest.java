@@ -0,0 +1,133 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.ChecksumVerification;
+import ru.mail.polis.dao.re1nex.Compression;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Detection of the corrupted SSTables and value log segments.
+ */
+class ChecksumTest extends TestBase {
+    private static final int KEYS = 1000;
+
+    @Test
+    void corruptedBlock(@TempDir File data) throws IOException {
+        corruptedBlock(data, Config.builder().build());
+    }
+
+    @Test
+    void corruptedCompressedBlock(@TempDir File data) throws IOException {
+        corruptedBlock(data, Config.builder().compression(Compression.DEFLATE).build());
+    }
+
+    @Test
+    void corruptedValue(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .valueLogThreshold(64)
+                .build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data, config);
+        final List<File> segments = files(data, ".vlog");
+        assertEquals(1, segments.size());
+        // Falls within the value of the first key
+        flip(segments.get(0), 0);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertThrows(IOException.class, () -> dao.get(expected.firstKey()));
+            assertEquals(expected.lastEntry().getValue(), dao.get(expected.lastKey()));
+            assertEquals(1, ((LsmDAO) dao).verify().size());
+        }
+    }
+
+    @Test
+    void verifiedByCompaction(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .checksumVerification(ChecksumVerification.COMPACTION)
+                .build();
+        fill(data, config);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            dao.compact();
+        }
+        final List<File> tables = files(data, ".db");
+        assertEquals(1, tables.size());
+        flip(tables.get(0), 0);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            assertThrows(IOException.class, dao::compact);
+            assertEquals(tables, ((LsmDAO) dao).verify());
+        }
+    }
+
+    private static void corruptedBlock(
+            @NotNull final File data,
+            @NotNull final Config config) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data, config);
+        final List<File> tables = files(data, ".db");
+        assertEquals(1, tables.size());
+        // Falls within the first block
+        flip(tables.get(0), 8);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertThrows(IOException.class, () -> dao.get(expected.firstKey()));
+            assertEquals(expected.lastEntry().getValue(), dao.get(expected.lastKey()));
+            assertEquals(tables, ((LsmDAO) dao).verify());
+        }
+    }
+
+    @NotNull
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(
+            @NotNull final File data,
+            @NotNull final Config config) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            dao.compact();
+            assertTrue(((LsmDAO) dao).verify().isEmpty());
+        }
+        return expected;
+    }
+
+    @NotNull
+    private static List<File> files(
+            @NotNull final File data,
+            @NotNull final String suffix) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(suffix));
+        assertTrue(files != null);
+        return new ArrayList<>(List.of(files));
+    }
+
+    private static void flip(
+            @NotNull final File file,
+            final long position) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            final int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0xFF);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.BackgroundIo;
+import ru.mail.polis.dao.re1nex.CompactionStyle;
+import ru.mail.polis.dao.re1nex.Compression;
+import ru.mail.polis.dao.re1nex.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flushes and compactions bypassing the page cache.
+ */
+class DirectIoTest extends TestBase {
+    private static final int KEYS = 500;
+
+    @Test
+    void sizeTiered(@TempDir File data) throws IOException {
+        workload(data, Config.builder()
+                .backgroundIo(BackgroundIo.DIRECT)
+                .compactionStyle(CompactionStyle.SIZE_TIERED)
+                .build());
+    }
+
+    @Test
+    void leveled(@TempDir File data) throws IOException {
+        workload(data, Config.builder()
+                .backgroundIo(BackgroundIo.DIRECT)
+                .compactionStyle(CompactionStyle.LEVELED)
+                .targetTableSize(64 * 1024)
+                .build());
+    }
+
+    @Test
+    void compressedAndSeparated(@TempDir File data) throws IOException {
+        workload(data, Config.builder()
+                .backgroundIo(BackgroundIo.DIRECT)
+                .compression(Compression.DEFLATE)
+                .valueLogThreshold(512)
+                .build());
+    }
+
+    /**
+     * Files of sizes not aligned to the blocks of the disk are written and read back.
+     */
+    private static void workload(
+            @NotNull final File data,
+            @NotNull final Config config) throws IOException {
+        final Config small = Config.builder()
+                .backgroundIo(config.getBackgroundIo())
+                .compactionStyle(config.getCompactionStyle())
+                .targetTableSize(config.getTargetTableSize())
+                .compression(config.getCompression())
+                .valueLogThreshold(config.getValueLogThreshold())
+                .flushThreshold(128 * 1024)
+                .compactionThreshold(2)
+                .build();
+        final Random random = new Random(42);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, small)) {
+            for (int i = 0; i < 10 * KEYS; i++) {
+                final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, random.nextInt(KEYS));
+                if (random.nextInt(10) == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    // Odd sizes
+                    final ByteBuffer value = randomBuffer(1 + random.nextInt(2000));
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data, small)) {
+            check(dao, expected);
+        }
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null && tables.length > 0);
+    }
+
+    private static void check(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -19,9 +19,20 @@ package ru.mail.polis.dao;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * Unit tests for {@link Iters} facilities.
@@ -55,4 +66,101 @@ class ItersTest {
                 ImmutableList.of(1, 2, 3, 5, 6),
                 ImmutableList.copyOf(collapsed));
     }
+
+    @Test
+    void mergeSorted() {
+        final Comparator<Integer> natural = Comparator.naturalOrder();
+        assertFalse(Iters.mergeSorted(ImmutableList.<Iterator<Integer>>of(), natural).hasNext());
+        assertFalse(Iters.mergeSorted(ImmutableList.of(Iters.<Integer>empty()), natural).hasNext());
+
+        final Integer[] merged = Iterators.toArray(
+                Iters.mergeSorted(
+                        ImmutableList.of(
+                                ImmutableList.of(2, 4, 6).iterator(),
+                                Iters.<Integer>empty(),
+                                ImmutableList.of(1, 2, 3, 7).iterator(),
+                                ImmutableList.of(5, 6, 8).iterator()),
+                        Comparator.naturalOrder()),
+                Integer.class);
+        assertEquals(
+                ImmutableList.of(1, 2, 3, 4, 5, 6, 7, 8),
+                ImmutableList.copyOf(merged));
+    }
+
+    @Test
+    void mergeSortedFirstSourceWins() {
+        final ImmutableList<Map.Entry<Integer, String>> merged = ImmutableList.copyOf(
+                Iters.mergeSorted(
+                        ImmutableList.of(
+                                ImmutableList.of(entry(1, "new"), entry(3, "new")).iterator(),
+                                ImmutableList.of(entry(1, "mid"), entry(2, "mid"), entry(3, "mid")).iterator(),
+                                ImmutableList.of(entry(1, "old"), entry(2, "old"), entry(4, "old")).iterator()),
+                        Map.Entry.comparingByKey()));
+        assertEquals(
+                ImmutableList.of(entry(1, "new"), entry(2, "mid"), entry(3, "new"), entry(4, "old")),
+                merged);
+    }
+
+    @Test
+    void recordSpecializations() {
+        final ImmutableList<Record> records = ImmutableList.of(
+                record(1), record(1), record(2), record(3), record(3), record(3), record(4));
+
+        assertEquals(
+                ImmutableList.of(record(1), record(2), record(3), record(4)),
+                ImmutableList.copyOf(Iters.collapseEqualKeys(records.iterator())));
+        assertEquals(
+                ImmutableList.of(record(1), record(1), record(2)),
+                ImmutableList.copyOf(Iters.untilKey(records.iterator(), key(3))));
+        assertFalse(Iters.untilKey(records.iterator(), key(0)).hasNext());
+    }
+
+    @Test
+    void recordSpecializationsDoNotAllocate() {
+        final int count = 100_000;
+        final List<Record> records = new ArrayList<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            records.add(record(i));
+            records.add(record(i));
+        }
+        final ByteBuffer until = key(Integer.MAX_VALUE);
+
+        // Let JIT compile the loop
+        for (int i = 0; i < 20; i++) {
+            drain(Iters.untilKey(Iters.collapseEqualKeys(records.iterator()), until));
+        }
+
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        final int drained = drain(Iters.untilKey(Iters.collapseEqualKeys(records.iterator()), until));
+        final long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        assertEquals(count, drained);
+        // Only the iterators themselves, nothing per element
+        assertTrue(allocated < count, "Allocated " + allocated + " bytes for " + count + " elements");
+    }
+
+    private static int drain(final Iterator<Record> iter) {
+        int count = 0;
+        while (iter.hasNext()) {
+            iter.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static ByteBuffer key(final int key) {
+        return ByteBuffer.allocate(Integer.BYTES).putInt(0, key);
+    }
+
+    private static Record record(final int key) {
+        return Record.of(key(key), ByteBuffer.allocate(0));
+    }
+
+    private static Map.Entry<Integer, String> entry(
+            final int key,
+            final String value) {
+        return new AbstractMap.SimpleImmutableEntry<>(key, value);
+    }
 }
@@ -0,0 +1,89 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.CompactionStyle;
+import ru.mail.polis.dao.re1nex.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Leveled compaction tests, tiny tables make the data spread over several levels.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final Config CONFIG = Config.builder()
+            .compactionStyle(CompactionStyle.LEVELED)
+            .flushThreshold(1)
+            .compactionThreshold(4)
+            .targetTableSize(4 * 1024)
+            .build();
+
+    @Test
+    void overwriteAndRemove(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(randomKeyBuffer());
+        }
+
+        final Random random = new Random(42);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int i = 0; i < 500; i++) {
+                final ByteBuffer key = keys.get(random.nextInt(keys.size()));
+                if (random.nextInt(4) == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final ByteBuffer value = randomValueBuffer();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+            check(dao, keys, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            check(dao, keys, expected);
+            dao.compact();
+            check(dao, keys, expected);
+        }
+    }
+
+    private static void check(
+            final DAO dao,
+            final List<ByteBuffer> keys,
+            final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        for (final ByteBuffer key : keys) {
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
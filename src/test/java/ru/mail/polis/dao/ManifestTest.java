@@ -0,0 +1,147 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery of the storage metadata.
+ */
+class ManifestTest extends TestBase {
+    private static final String MANIFEST = "MANIFEST";
+
+    @Test
+    void tornTail(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data);
+        try (RandomAccessFile manifest = new RandomAccessFile(new File(data, MANIFEST), "rw")) {
+            manifest.seek(manifest.length());
+            // Length of a record which has not been written completely
+            manifest.writeInt(1024);
+            manifest.writeInt(42);
+        }
+        check(data, expected);
+        check(data, expected);
+    }
+
+    @Test
+    void corruptedTail(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data);
+        try (RandomAccessFile manifest = new RandomAccessFile(new File(data, MANIFEST), "rw")) {
+            // The last record only drops the log of the empty MemTable
+            manifest.seek(manifest.length() - 1);
+            final int last = manifest.read();
+            manifest.seek(manifest.length() - 1);
+            manifest.write(last ^ 0xFF);
+        }
+        check(data, expected);
+    }
+
+    @Test
+    void corruptedMiddle(@TempDir File data) throws IOException {
+        fill(data);
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null && tables.length > 0);
+        try (RandomAccessFile manifest = new RandomAccessFile(new File(data, MANIFEST), "rw")) {
+            // The first record lists the tables and is followed by the later changes
+            manifest.seek(8);
+            final int first = manifest.read();
+            manifest.seek(8);
+            manifest.write(first ^ 0xFF);
+        }
+        assertThrows(IOException.class, () -> DAOFactory.create(data));
+        // Nothing is lost
+        for (final File table : tables) {
+            assertTrue(table.exists());
+        }
+    }
+
+    @Test
+    void missingTable(@TempDir File data) throws IOException {
+        fill(data);
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null && tables.length > 0);
+        Files.delete(tables[0].toPath());
+        assertThrows(IOException.class, () -> DAOFactory.create(data));
+    }
+
+    @Test
+    void unknownTable(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = fill(data);
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null && tables.length > 0);
+        // A table of a flush which has not been recorded
+        final File unknown = new File(data, "1000000.db");
+        Files.copy(tables[0].toPath(), unknown.toPath());
+        check(data, expected);
+        assertFalse(unknown.exists());
+    }
+
+    @Test
+    void failedWrite(@TempDir File data) throws Exception {
+        final ByteBuffer first = randomKeyBuffer();
+        final ByteBuffer second = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(first, value);
+            breakManifest(dao);
+            // Recording the log of the fresh MemTable fails
+            assertThrows(IOException.class, dao::compact);
+            dao.compact();
+            dao.upsert(second, value);
+        }
+        check(data, Map.of(first, value, second, value));
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        for (int i = 0; i < 3; i++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int j = 0; j < 100; j++) {
+                    final ByteBuffer key = randomKeyBuffer();
+                    final ByteBuffer value = randomValueBuffer();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static void check(
+            final File data,
+            final Map<ByteBuffer, ByteBuffer> expected) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    private static void breakManifest(final DAO dao) throws ReflectiveOperationException, IOException {
+        final Object manifest = field(dao, "manifest");
+        ((FileChannel) field(manifest, "channel")).close();
+    }
+
+    private static Object field(
+            final Object target,
+            final String name) throws ReflectiveOperationException {
+        final Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+}
@@ -0,0 +1,180 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Compression;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+import ru.mail.polis.dao.re1nex.MemoryBudget;
+import ru.mail.polis.dao.re1nex.MemoryLimitException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Memory accounting and write stall tests.
+ */
+class MemoryBudgetTest extends TestBase {
+    private static final long LIMIT = 8L * 1024 * 1024;
+    private static final int VALUE_SIZE = 64 * 1024;
+
+    @Test
+    void stalled(@TempDir File data) throws IOException {
+        // MemTables are never full, the budget makes them flushed
+        final Config config = Config.builder()
+                .flushThreshold(1024L * 1024 * 1024)
+                .memoryLimit(LIMIT)
+                .blockCacheSize(0)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final MemoryBudget budget = ((LsmDAO) dao).getMemoryBudget();
+            for (int i = 0; i < 4 * LIMIT / VALUE_SIZE; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomBuffer(VALUE_SIZE);
+                dao.upsert(key, value);
+                expected.put(key, value);
+                // Overshoots by the writes in flight at most
+                assertTrue(budget.getUsed() <= LIMIT + 2 * VALUE_SIZE + 1024 * 1024, "Used " + budget.getUsed());
+            }
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null && tables.length > 0);
+    }
+
+    @Test
+    void rejected(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .memoryLimit(LIMIT)
+                .writeStallMillis(100)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final MemoryBudget budget = ((LsmDAO) dao).getMemoryBudget();
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+
+            // Held by the requests served by another thread
+            final ExecutorService server = Executors.newSingleThreadExecutor();
+            try {
+                final long requests = LIMIT - budget.getUsed();
+                assertTrue(server.submit(() -> budget.tryReserve(MemoryBudget.Pool.REQUESTS, requests)).get());
+                assertFalse(budget.tryReserve(MemoryBudget.Pool.REQUESTS, 1));
+                assertThrows(MemoryLimitException.class, () -> dao.upsert(key, value));
+                server.submit(() -> budget.release(MemoryBudget.Pool.REQUESTS, requests)).get();
+            } finally {
+                server.shutdown();
+            }
+
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+            // Never fits
+            assertThrows(MemoryLimitException.class, () -> dao.upsert(randomKeyBuffer(), randomBuffer((int) LIMIT)));
+        }
+    }
+
+    @Test
+    void admittedWithinRequest(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .memoryLimit(LIMIT)
+                .writeStallMillis(100)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final MemoryBudget budget = ((LsmDAO) dao).getMemoryBudget();
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomBuffer((int) (LIMIT * 3 / 4));
+
+            // The body of the request is not counted twice
+            assertTrue(budget.tryReserve(MemoryBudget.Pool.REQUESTS, value.remaining()));
+            try {
+                dao.upsert(key, value);
+            } finally {
+                budget.release(MemoryBudget.Pool.REQUESTS, value.remaining());
+            }
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void cacheDropped(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .compression(Compression.DEFLATE)
+                .memoryLimit(LIMIT)
+                .writeStallMillis(100)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final MemoryBudget budget = ((LsmDAO) dao).getMemoryBudget();
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = ByteBuffer.allocate(1024);
+            dao.upsert(key, value);
+            dao.compact();
+            assertEquals(value, dao.get(key));
+            assertTrue(budget.getUsed(MemoryBudget.Pool.BLOCK_CACHE) > 0);
+
+            // The rest is held by the requests served by another thread
+            final ExecutorService server = Executors.newSingleThreadExecutor();
+            try {
+                final long requests = LIMIT - budget.getUsed();
+                assertTrue(server.submit(() -> budget.tryReserve(MemoryBudget.Pool.REQUESTS, requests)).get());
+                final ByteBuffer next = randomKeyBuffer();
+                dao.upsert(next, value);
+                assertEquals(value, dao.get(next));
+                server.submit(() -> budget.release(MemoryBudget.Pool.REQUESTS, requests)).get();
+            } finally {
+                server.shutdown();
+            }
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void overwrittenKey(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .flushThreshold(1024L * 1024 * 1024)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final MemoryBudget budget = ((LsmDAO) dao).getMemoryBudget();
+            final ByteBuffer key = randomBuffer(VALUE_SIZE);
+            for (int i = 0; i < 200; i++) {
+                dao.upsert(key, randomValueBuffer());
+            }
+            // The key is stored once rather than per overwrite
+            final long used = budget.getUsed(MemoryBudget.Pool.MEM_TABLES);
+            assertTrue(used < 4 * 1024 * 1024, "Used " + used);
+        }
+    }
+
+    @Test
+    void released(@TempDir File data) throws IOException {
+        // Compressed blocks are cached, so the values are compressible
+        final Config config = Config.builder()
+                .compression(Compression.DEFLATE)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final MemoryBudget budget = ((LsmDAO) dao).getMemoryBudget();
+            final ByteBuffer key = randomKeyBuffer();
+            dao.upsert(key, ByteBuffer.allocate(1024));
+            assertTrue(budget.getUsed(MemoryBudget.Pool.MEM_TABLES) > 0);
+
+            dao.compact();
+            assertEquals(0, budget.getUsed(MemoryBudget.Pool.MEM_TABLES));
+            dao.get(key);
+            final long cache = budget.getUsed(MemoryBudget.Pool.BLOCK_CACHE);
+            assertTrue(cache > 0 && cache <= Config.DEFAULT.getBlockCacheSize(), "Cache of " + cache + " bytes");
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.CompactionStyle;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+import ru.mail.polis.dao.re1nex.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Range tombstone tests.
+ */
+class RangeTombstoneTest extends TestBase {
+    private static final int KEYS = 200;
+
+    @Test
+    void removed(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                upsert(dao, expected, i);
+            }
+            // Both in the MemTable and in the SSTable
+            dao.compact();
+            for (int i = 0; i < KEYS; i += 2) {
+                upsert(dao, expected, i);
+            }
+            removeRange(dao, expected, 50, 150);
+            upsert(dao, expected, 100);
+            check(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void removedOneByOne(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            // Falls back to the default removal of the keys in chunks
+            final DAO plain = new DAO() {
+                @NotNull
+                @Override
+                public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+                    return dao.iterator(from);
+                }
+
+                @Override
+                public void upsert(
+                        @NotNull final ByteBuffer key,
+                        @NotNull final ByteBuffer value) throws IOException {
+                    dao.upsert(key, value);
+                }
+
+                @Override
+                public void upsert(
+                        @NotNull final ByteBuffer key,
+                        @NotNull final ByteBuffer value,
+                        @NotNull final Duration ttl) throws IOException {
+                    dao.upsert(key, value, ttl);
+                }
+
+                @Override
+                public void remove(@NotNull final ByteBuffer key) throws IOException {
+                    dao.remove(key);
+                }
+
+                @Override
+                public void close() {
+                    // The delegate is closed by the test
+                }
+            };
+            final int keys = 3000;
+            for (int i = 0; i < keys; i++) {
+                upsert(plain, expected, i);
+            }
+            removeRange(plain, expected, 10, keys - 10);
+            check(plain, expected);
+        }
+    }
+
+    @Test
+    void restoredFromLog(@TempDir File root) throws IOException {
+        // Temporary directories of a test are the same
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir() && crashed.mkdir());
+
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                upsert(dao, expected, i);
+            }
+            removeRange(dao, expected, 10, 20);
+            upsert(dao, expected, 15);
+            dao.write(new WriteBatch()
+                    .removeRange(key(30), key(40))
+                    .upsert(key(35), value(35)));
+            expected.subMap(key(30), key(40)).clear();
+            expected.put(key(35), value(35));
+
+            // The MemTable is restored from its log
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(data.toPath())) {
+                for (final Path file : files) {
+                    Files.copy(file, crashed.toPath().resolve(file.getFileName()));
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(crashed)) {
+            check(dao, expected);
+        }
+    }
+
+    @Test
+    void snapshotIsolated(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                upsert(dao, expected, i);
+            }
+            final NavigableMap<ByteBuffer, ByteBuffer> before = new TreeMap<>(expected);
+            try (Snapshot snapshot = ((LsmDAO) dao).snapshot()) {
+                removeRange(dao, expected, 0, KEYS);
+                check(dao, expected);
+                dao.compact();
+                assertEquals(before.get(key(42)), snapshot.get(key(42)));
+                final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : before.entrySet()) {
+                    assertTrue(records.hasNext());
+                    assertEquals(entry.getKey(), records.next().getKey());
+                }
+                assertFalse(records.hasNext());
+            }
+        }
+    }
+
+    @Test
+    void purgedAtBottom(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                upsert(dao, expected, i);
+            }
+            dao.compact();
+            removeRange(dao, expected, 0, KEYS);
+            dao.compact();
+            check(dao, expected);
+        }
+
+        // Nothing is left of the records
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null);
+        long bytes = 0;
+        for (final File table : tables) {
+            bytes += table.length();
+        }
+        assertTrue(bytes < 1024, "Tables of " + bytes + " bytes");
+    }
+
+    @Test
+    void sizeTieredWorkload(@TempDir File data) throws IOException {
+        workload(data, CompactionStyle.SIZE_TIERED);
+    }
+
+    @Test
+    void leveledWorkload(@TempDir File data) throws IOException {
+        workload(data, CompactionStyle.LEVELED);
+    }
+
+    private static void workload(
+            @NotNull final File data,
+            @NotNull final CompactionStyle style) throws IOException {
+        final Config config = Config.builder()
+                .flushThreshold(32 * 1024)
+                .compactionThreshold(2)
+                .compactionStyle(style)
+                .targetTableSize(8 * 1024)
+                .build();
+        final Random random = new Random(42);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 5000; i++) {
+                final int k = random.nextInt(KEYS);
+                final int op = random.nextInt(50);
+                if (op == 0) {
+                    removeRange(dao, expected, k, Math.min(KEYS, k + 1 + random.nextInt(KEYS / 4)));
+                } else if (op < 5) {
+                    dao.remove(key(k));
+                    expected.remove(key(k));
+                } else {
+                    upsert(dao, expected, k);
+                }
+            }
+            check(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            check(dao, expected);
+            dao.compact();
+            check(dao, expected);
+        }
+    }
+
+    private static void check(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected) throws IOException {
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+    }
+
+    private static void upsert(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final int key) throws IOException {
+        final ByteBuffer value = join(value(key), randomBuffer(8));
+        dao.upsert(key(key), value);
+        expected.put(key(key), value);
+    }
+
+    private static void removeRange(
+            @NotNull final DAO dao,
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            final int from,
+            final int to) throws IOException {
+        dao.removeRange(key(from), key(to));
+        expected.subMap(key(from), key(to)).clear();
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int key) {
+        return ByteBuffer.wrap(String.format("key-%05d", key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int key) {
+        return ByteBuffer.wrap(String.format("value-%05d", key).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,103 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background and interrupted compaction tests.
+ */
+class SizeTieredCompactionTest extends TestBase {
+    @Test
+    void background(@TempDir File data) throws IOException {
+        final int compactionThreshold = 4;
+        // Every write is flushed to a separate table
+        final Config config = Config.builder()
+                .flushThreshold(1)
+                .compactionThreshold(compactionThreshold)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+
+        // Small tables form a single tier which is merged as soon as it grows large enough
+        assertTrue(tables(data) < compactionThreshold);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void interrupted(@TempDir File data, @TempDir File inputs) throws IOException {
+        final ByteBuffer removed = randomKeyBuffer();
+        final ByteBuffer kept = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.remove(removed);
+            dao.upsert(kept, value);
+        }
+        copyTables(data, inputs);
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+        }
+        assertEquals(1, tables(data));
+
+        // The inputs outlived the compaction result in a crash
+        copyTables(inputs, data);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(value, dao.get(kept));
+        }
+        assertEquals(1, tables(data));
+    }
+
+    private static int tables(final File data) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(data.toPath(), "*.db")) {
+            for (final Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void copyTables(
+            final File from,
+            final File to) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(from.toPath(), "*.db")) {
+            for (final Path file : files) {
+                final Path target = to.toPath().resolve(file.getFileName());
+                if (!Files.exists(target)) {
+                    Files.copy(file, target);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+import ru.mail.polis.dao.re1nex.MemoryBudget;
+import ru.mail.polis.dao.re1nex.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Point-in-time snapshot tests.
+ */
+class SnapshotTest extends TestBase {
+    private static final int KEYS = 100;
+
+    @Test
+    void isolation(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+            final ByteBuffer removed = expected.firstKey();
+            final ByteBuffer added = randomKeyBuffer();
+            try (Snapshot snapshot = ((LsmDAO) dao).snapshot()) {
+                for (final ByteBuffer key : expected.keySet()) {
+                    dao.upsert(key, randomValueBuffer());
+                }
+                dao.remove(removed);
+                dao.upsert(added, randomValueBuffer());
+
+                assertContains(expected, snapshot.iterator(ByteBuffer.allocate(0)));
+                assertEquals(expected.get(removed), snapshot.get(removed));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+                assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            }
+        }
+    }
+
+    @Test
+    void overwritesDropped(@TempDir File data) throws Exception {
+        final int overwrites = 50_000;
+        final Config config = Config.builder()
+                .flushThreshold(64L * 1024 * 1024)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final MemoryBudget budget = ((LsmDAO) dao).getMemoryBudget();
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer old = randomValueBuffer();
+            dao.upsert(key, old);
+            try (Snapshot snapshot = ((LsmDAO) dao).snapshot()) {
+                for (int i = 0; i < overwrites; i++) {
+                    dao.upsert(key, ByteBuffer.allocate(1));
+                }
+                assertEquals(old, snapshot.get(key));
+            }
+
+            // Nobody sees the overwritten versions any more, while they would take megabytes
+            final long used = budget.getUsed(MemoryBudget.Pool.MEM_TABLES);
+            final ByteBuffer latest = randomValueBuffer();
+            for (int i = 0; i < overwrites; i++) {
+                dao.upsert(key, i == overwrites - 1 ? latest : ByteBuffer.allocate(1));
+            }
+            final long grown = budget.getUsed(MemoryBudget.Pool.MEM_TABLES) - used;
+            assertTrue(grown < 2L * 1024 * 1024, "Grown by " + grown);
+            assertEquals(latest, dao.get(key));
+        }
+    }
+
+    @Test
+    void survivesCompaction(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .flushThreshold(64 * 1024)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+            dao.compact();
+            final Snapshot snapshot = ((LsmDAO) dao).snapshot();
+            for (int round = 0; round < 3; round++) {
+                for (final ByteBuffer key : expected.keySet()) {
+                    dao.upsert(key, randomValueBuffer());
+                }
+                dao.compact();
+            }
+
+            // The snapshot keeps the replaced table
+            assertEquals(2, tables(data));
+            assertContains(expected, snapshot.iterator(ByteBuffer.allocate(0)));
+            snapshot.close();
+            assertEquals(1, tables(data));
+            assertThrows(IllegalStateException.class, () -> snapshot.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void consistentScans(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .flushThreshold(256 * 1024)
+                .compactionThreshold(2)
+                .build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        keys.sort(null);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final AtomicBoolean stopped = new AtomicBoolean();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            // Every round overwrites the keys in order with the round number
+            final Future<?> writer = executor.submit(() -> {
+                for (long round = 0; !stopped.get(); round++) {
+                    for (final ByteBuffer key : keys) {
+                        dao.upsert(key, ByteBuffer.allocate(Long.BYTES).putLong(0, round));
+                    }
+                }
+                return null;
+            });
+
+            for (int scan = 0; scan < 200; scan++) {
+                try (Snapshot snapshot = ((LsmDAO) dao).snapshot()) {
+                    final List<Long> rounds = new ArrayList<>();
+                    snapshot.iterator(ByteBuffer.allocate(0))
+                            .forEachRemaining(record -> rounds.add(record.getValue().getLong()));
+                    if (rounds.isEmpty()) {
+                        continue;
+                    }
+                    // A prefix of the keys is written by the last round seen
+                    final long last = rounds.get(0);
+                    for (int i = 1; i < rounds.size(); i++) {
+                        assertTrue(rounds.get(i) <= rounds.get(i - 1) && rounds.get(i) >= last - 1);
+                    }
+                }
+            }
+            stopped.set(true);
+            writer.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @NotNull
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(@NotNull final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+            expected.put(key, value);
+        }
+        return expected;
+    }
+
+    private static void assertContains(
+            @NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+            @NotNull final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static int tables(@NotNull final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null);
+        return tables.length;
+    }
+}
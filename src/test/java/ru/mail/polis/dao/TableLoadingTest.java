@@ -0,0 +1,116 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Startup with many SSTables.
+ */
+class TableLoadingTest extends TestBase {
+    private static final int TABLES = 200;
+
+    // Every upsert is flushed to its own table, which is never compacted
+    private static final Config CONFIG = Config.builder()
+            .flushThreshold(1)
+            .compactionThreshold(TABLES * 2)
+            .build();
+
+    @Test
+    void manyTables(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        assertTrue(tables(data).length >= TABLES);
+
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKeyBuffer()));
+
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void littleEndianKeys(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+
+        // The Bloom filters hash the keys regardless of the byte order of the buffers
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                final ByteBuffer key = entry.getKey().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                assertEquals(entry.getValue(), dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void interruptedWrite(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        // Left by a crash in the middle of a table write
+        final String[] leftovers = {"100000.db.tmp", "100000.db.tmp.index", "100000.db.tmp.hashes"};
+        for (final String name : leftovers) {
+            assertTrue(new File(data, name).createNewFile());
+        }
+
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            final Map.Entry<ByteBuffer, ByteBuffer> entry = expected.firstEntry();
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        for (final String name : leftovers) {
+            assertFalse(new File(data, name).exists(), name);
+        }
+    }
+
+    @Test
+    void corruptedTable(@TempDir File data) throws IOException {
+        fill(data);
+        try (RandomAccessFile table = new RandomAccessFile(tables(data)[TABLES / 2], "rw")) {
+            table.setLength(table.length() / 2);
+        }
+        assertThrows(IOException.class, () -> DAOFactory.create(data, CONFIG));
+    }
+
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, CONFIG)) {
+            for (int i = 0; i < TABLES; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+        }
+        return expected;
+    }
+
+    private static File[] tables(final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null);
+        return tables;
+    }
+}
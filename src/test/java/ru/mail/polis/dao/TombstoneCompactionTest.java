@@ -0,0 +1,109 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.CompactionStyle;
+import ru.mail.polis.dao.re1nex.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tombstone purging tests.
+ */
+class TombstoneCompactionTest extends TestBase {
+    private static final int KEYS = 100;
+    private static final int VALUE_SIZE = 16 * 1024;
+
+    @Test
+    void sizeTieredDensity(@TempDir File data) throws IOException {
+        densityTriggered(data, CompactionStyle.SIZE_TIERED);
+    }
+
+    @Test
+    void leveledDensity(@TempDir File data) throws IOException {
+        densityTriggered(data, CompactionStyle.LEVELED);
+    }
+
+    @Test
+    void gracePeriod(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .gcGraceMillis(TimeUnit.HOURS.toMillis(1))
+                .build();
+        final List<ByteBuffer> keys = fill(data, config);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+            dao.compact();
+            for (final ByteBuffer key : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+
+        // The values are gone, while the tombstones are kept
+        final long bytes = bytes(data);
+        assertTrue(bytes > KEYS * KEY_LENGTH, "Tables of " + bytes + " bytes");
+        assertTrue(bytes < VALUE_SIZE, "Tables of " + bytes + " bytes");
+    }
+
+    /**
+     * The table of tombstones is merged with the table of values, although there are too few tables to merge.
+     */
+    private static void densityTriggered(
+            @NotNull final File data,
+            @NotNull final CompactionStyle style) throws IOException {
+        final Config config = Config.builder()
+                .compactionStyle(style)
+                .compactionThreshold(4)
+                .build();
+        final List<ByteBuffer> keys = fill(data, config);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final ByteBuffer key : keys) {
+                dao.remove(key);
+            }
+        }
+
+        final long bytes = bytes(data);
+        assertTrue(bytes < KEYS * KEY_LENGTH, "Tables of " + bytes + " bytes");
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertFalse(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+        }
+    }
+
+    @NotNull
+    private static List<ByteBuffer> fill(
+            @NotNull final File data,
+            @NotNull final Config config) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                keys.add(key);
+                dao.upsert(key, randomBuffer(VALUE_SIZE));
+            }
+        }
+        return keys;
+    }
+
+    private static long bytes(@NotNull final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null);
+        long bytes = 0;
+        for (final File table : tables) {
+            bytes += table.length();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,143 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+import ru.mail.polis.dao.re1nex.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Expiring value tests.
+ */
+class TtlTest extends TestBase {
+    private static final Duration SHORT = Duration.ofMillis(200);
+    private static final Duration LONG = Duration.ofHours(1);
+
+    @Test
+    void expired(@TempDir File data) throws Exception {
+        final ByteBuffer expiring = randomKeyBuffer();
+        final ByteBuffer overwritten = randomKeyBuffer();
+        final ByteBuffer living = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(expiring, randomValueBuffer(), SHORT);
+            dao.upsert(overwritten, randomValueBuffer());
+            dao.compact();
+            dao.upsert(overwritten, randomValueBuffer(), SHORT);
+            dao.upsert(living, value, LONG);
+            assertEquals(value, dao.get(living));
+            assertTrue(dao.iterator(ByteBuffer.allocate(0)).hasNext());
+
+            Thread.sleep(SHORT.toMillis() * 2);
+            assertThrows(NoSuchElementException.class, () -> dao.get(expiring));
+            // The expired value shadows the staler one
+            assertThrows(NoSuchElementException.class, () -> dao.get(overwritten));
+            assertEquals(value, dao.get(living));
+            assertEquals(1, count(dao));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(expiring));
+            assertThrows(NoSuchElementException.class, () -> dao.get(overwritten));
+            assertEquals(value, dao.get(living));
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(overwritten));
+            assertEquals(value, dao.get(living));
+        }
+    }
+
+    @Test
+    void restoredFromLog(@TempDir File data) throws IOException {
+        final ByteBuffer single = randomKeyBuffer();
+        final ByteBuffer batched = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final Config config = Config.builder()
+                .valueLogThreshold(16)
+                .build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(single, value, LONG);
+            dao.write(new WriteBatch().upsert(batched, value, Instant.now().plus(LONG)));
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            assertEquals(value, dao.get(single));
+            assertEquals(value, dao.get(batched));
+        }
+    }
+
+    @Test
+    void purgedByCompaction(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < 1000; i++) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer(), SHORT);
+            }
+            dao.compact();
+
+            Thread.sleep(SHORT.toMillis() * 2);
+            dao.compact();
+            assertEquals(0, count(dao));
+            // Nothing is left of the values
+            assertTrue(bytes(data) < 1024, "Tables of " + bytes(data) + " bytes");
+        }
+    }
+
+    @Test
+    void visibleInSnapshot(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value, SHORT);
+            try (Snapshot snapshot = ((LsmDAO) dao).snapshot()) {
+                Thread.sleep(SHORT.toMillis() * 2);
+                dao.compact();
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                assertEquals(value, snapshot.get(key));
+                assertTrue(snapshot.iterator(ByteBuffer.allocate(0)).hasNext());
+            }
+        }
+    }
+
+    @Test
+    void invalidTtl(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(
+                    IllegalArgumentException.class,
+                    () -> dao.upsert(randomKeyBuffer(), randomValueBuffer(), Duration.ZERO));
+            // Saturates rather than overflows
+            final ByteBuffer key = randomKeyBuffer();
+            dao.upsert(key, randomValueBuffer(), Duration.ofSeconds(Long.MAX_VALUE));
+            assertEquals(1, count(dao));
+        }
+    }
+
+    private static int count(@NotNull final DAO dao) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        dao.iterator(ByteBuffer.allocate(0)).forEachRemaining(record -> keys.add(record.getKey()));
+        return keys.size();
+    }
+
+    private static long bytes(@NotNull final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        assertTrue(tables != null);
+        long bytes = 0;
+        for (final File table : tables) {
+            bytes += table.length();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,169 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.CompactionStyle;
+import ru.mail.polis.dao.re1nex.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Key-value separation tests.
+ */
+class ValueLogTest extends TestBase {
+    private static final int KEYS = 50;
+    private static final int VALUE_SIZE = 16 * 1024;
+
+    @Test
+    void separated(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .valueLogThreshold(1024)
+                .flushThreshold(256 * 1024)
+                .build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomBuffer(i % 2 == 0 ? VALUE_SIZE : 100);
+                keys.add(key);
+                values.add(value);
+                dao.upsert(key, value);
+            }
+            dao.compact();
+        }
+
+        // The tables hold the small values and the pointers only
+        assertTrue(bytes(data, ".db") < KEYS / 2 * VALUE_SIZE / 10);
+        assertEquals(KEYS / 2 * VALUE_SIZE, bytes(data, ".vlog"));
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void garbageCollected(@TempDir File data) throws IOException {
+        final Config config = Config.builder()
+                .valueLogThreshold(1024)
+                .build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final Map<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                keys.add(key);
+                upsert(dao, expected, key);
+            }
+            dao.compact();
+
+            // The first segment keeps a few live values only, the second one is dropped entirely
+            for (int round = 0; round < 2; round++) {
+                for (final ByteBuffer key : keys.subList(0, KEYS - 5)) {
+                    upsert(dao, expected, key);
+                }
+                dao.compact();
+            }
+        }
+
+        assertEquals(KEYS * VALUE_SIZE, bytes(data, ".vlog"));
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void sizeTieredWorkload(@TempDir File data) throws IOException {
+        workload(data, CompactionStyle.SIZE_TIERED);
+    }
+
+    @Test
+    void leveledWorkload(@TempDir File data) throws IOException {
+        workload(data, CompactionStyle.LEVELED);
+    }
+
+    private static void workload(
+            @NotNull final File data,
+            @NotNull final CompactionStyle style) throws IOException {
+        final Config config = Config.builder()
+                .valueLogThreshold(64)
+                .flushThreshold(32 * 1024)
+                .compactionThreshold(2)
+                .compactionStyle(style)
+                .targetTableSize(16 * 1024)
+                .build();
+        final Random random = new Random(42);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            keys.add(randomKeyBuffer());
+        }
+
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            for (int i = 0; i < 5000; i++) {
+                final ByteBuffer key = keys.get(random.nextInt(keys.size()));
+                if (random.nextInt(10) == 0) {
+                    dao.remove(key);
+                    expected.remove(key);
+                } else {
+                    final ByteBuffer value = randomBuffer(1 + random.nextInt(256));
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.compact();
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertTrue(records.hasNext());
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    private static void upsert(
+            @NotNull final DAO dao,
+            @NotNull final Map<ByteBuffer, ByteBuffer> expected,
+            @NotNull final ByteBuffer key) throws IOException {
+        final ByteBuffer value = randomBuffer(VALUE_SIZE);
+        dao.upsert(key, value);
+        expected.put(key, value);
+    }
+
+    private static long bytes(
+            @NotNull final File data,
+            @NotNull final String suffix) {
+        long bytes = 0;
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(suffix));
+        assertTrue(files != null);
+        for (final File file : files) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,274 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Crash recovery tests for the write-ahead log.
+ * <p>
+ * A crash is simulated by copying the data directory of a {@link DAO} which is still open.
+ */
+class WriteAheadLogTest extends TestBase {
+    @Test
+    void groupCommit(@TempDir File data, @TempDir File crashed) throws IOException {
+        recover(SyncPolicy.GROUP_COMMIT, data, crashed);
+    }
+
+    @Test
+    void periodic(@TempDir File data, @TempDir File crashed) throws IOException {
+        recover(SyncPolicy.PERIODIC, data, crashed);
+    }
+
+    @Test
+    void none(@TempDir File data, @TempDir File crashed) throws IOException {
+        recover(SyncPolicy.NONE, data, crashed);
+    }
+
+    @Test
+    void tornTail(@TempDir File data, @TempDir File crashed) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+
+        final Config config = Config.builder().syncPolicy(SyncPolicy.GROUP_COMMIT).build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(key, value);
+            copy(data, crashed);
+        }
+
+        // Half-written record
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(crashed.toPath(), "*.log")) {
+            for (final Path log : logs) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.APPEND)) {
+                    channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, KEY_LENGTH));
+                    channel.write(randomBuffer(KEY_LENGTH / 2));
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(crashed, config)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void corruptedRecord(@TempDir File root) throws IOException {
+        // Temporary directories of a test are the same
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir() && crashed.mkdir());
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer corrupted = randomKeyBuffer();
+
+        final Config config = Config.builder().syncPolicy(SyncPolicy.GROUP_COMMIT).build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(key, value);
+            dao.upsert(corrupted, randomValueBuffer());
+            copy(data, crashed);
+        }
+
+        // Flip the last byte of the value of the last record
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(crashed.toPath(), "*.log")) {
+            for (final Path log : logs) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    final long position = channel.size() - Integer.BYTES - 1;
+                    final ByteBuffer b = ByteBuffer.allocate(1);
+                    channel.read(b, position);
+                    b.put(0, (byte) ~b.get(0));
+                    channel.write(b.flip(), position);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(crashed, config)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(corrupted));
+        }
+    }
+
+    @Test
+    void outOfOrderRecord(@TempDir File root) throws IOException {
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir() && crashed.mkdir());
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer later = randomKeyBuffer();
+
+        final Config config = Config.builder().syncPolicy(SyncPolicy.GROUP_COMMIT).build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(key, value);
+            copy(data, crashed);
+        }
+
+        // A valid record numbered as the last one followed by a valid record in order
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(crashed.toPath(), "*.log")) {
+            for (final Path log : logs) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    if (channel.size() == 0) {
+                        continue;
+                    }
+                    final ByteBuffer sequence = ByteBuffer.allocate(Long.BYTES);
+                    channel.read(sequence, 0);
+                    final long last = sequence.getLong(0);
+                    channel.write(record(last, key, randomValueBuffer()), channel.size());
+                    channel.write(record(last + 1, later, value), channel.size());
+                }
+            }
+        }
+
+        // Replay stops at the record out of order
+        try (DAO dao = DAOFactory.create(crashed, config)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(later));
+        }
+    }
+
+    @Test
+    void interruptedWriter(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            Thread.currentThread().interrupt();
+            try {
+                dao.upsert(key, value);
+                assertTrue(Thread.currentThread().isInterrupted());
+            } finally {
+                Thread.interrupted();
+            }
+
+            // The log is still usable
+            final ByteBuffer next = randomKeyBuffer();
+            dao.upsert(next, value);
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(next));
+        }
+    }
+
+    @Test
+    void failedWrite(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final ByteBuffer next = randomKeyBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            breakActiveLog(dao);
+            assertThrows(IOException.class, () -> dao.upsert(randomKeyBuffer(), randomValueBuffer()));
+
+            // The later writes go to a fresh log
+            dao.upsert(next, value);
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(next));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(next));
+        }
+    }
+
+    /**
+     * Makes the next write to the log of the active MemTable fail, as an I/O error would.
+     */
+    private static void breakActiveLog(final DAO dao) throws ReflectiveOperationException, IOException {
+        final Object tables = ((AtomicReference<?>) field(dao, "tables")).get();
+        final Object log = field(field(tables, "memTable"), "log");
+        ((FileChannel) field(log, "channel")).close();
+    }
+
+    private static Object field(
+            final Object target,
+            final String name) throws ReflectiveOperationException {
+        final Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(target);
+    }
+
+    private static void recover(
+            final SyncPolicy policy,
+            final File data,
+            final File crashed) throws IOException {
+        final Config config = Config.builder()
+                .syncPolicy(policy)
+                .syncIntervalMillis(1)
+                .build();
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        final ByteBuffer removed = randomKeyBuffer();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(removed, randomValueBuffer());
+            for (int i = 0; i < 100; i++) {
+                final ByteBuffer key = randomKeyBuffer();
+                final ByteBuffer value = randomValueBuffer();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            dao.remove(removed);
+
+            copy(data, crashed);
+        }
+
+        try (DAO dao = DAOFactory.create(crashed, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    /**
+     * @return log record of the write of the value
+     */
+    private static ByteBuffer record(
+            final long sequence,
+            final ByteBuffer key,
+            final ByteBuffer value) {
+        final ByteBuffer write = ByteBuffer.allocate(Integer.BYTES * 2 + key.remaining() + value.remaining());
+        write.putInt(key.remaining()).put(key.duplicate());
+        write.putInt(value.remaining()).put(value.duplicate());
+        final ByteBuffer number = ByteBuffer.allocate(Long.BYTES).putLong(0, sequence);
+        final int checksum = crc(write.flip()) ^ crc(number);
+        return ByteBuffer.allocate(Long.BYTES + write.remaining() + Integer.BYTES)
+                .put(number)
+                .put(write)
+                .putInt(checksum)
+                .flip();
+    }
+
+    private static int crc(final ByteBuffer buffer) {
+        final CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static void copy(
+            final File from,
+            final File to) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(from.toPath())) {
+            for (final Path file : files) {
+                Files.copy(file, to.toPath().resolve(file.getFileName()));
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+import ru.mail.polis.dao.re1nex.Snapshot;
+import ru.mail.polis.dao.re1nex.SyncPolicy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Atomic write batch tests.
+ */
+class WriteBatchTest extends TestBase {
+    private static final int KEYS = 50;
+
+    @Test
+    void applied(@TempDir File data) throws IOException {
+        final ByteBuffer removed = randomKeyBuffer();
+        final ByteBuffer overwritten = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(removed, randomValueBuffer());
+            dao.write(new WriteBatch()
+                    .upsert(overwritten, randomValueBuffer())
+                    .remove(removed)
+                    .upsert(overwritten, value));
+            assertEquals(value, dao.get(overwritten));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(overwritten));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void atomicForSnapshots(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .flushThreshold(128 * 1024)
+                .build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            // Every batch overwrites all the keys in random order with the batch number
+            final List<Future<?>> writers = new ArrayList<>();
+            for (int w = 0; w < 2; w++) {
+                final long writer = w;
+                writers.add(executor.submit(() -> {
+                    final Random random = new Random(writer);
+                    final List<ByteBuffer> shuffled = new ArrayList<>(keys);
+                    for (long round = 0; !stopped.get(); round++) {
+                        Collections.shuffle(shuffled, random);
+                        final WriteBatch batch = new WriteBatch();
+                        for (final ByteBuffer key : shuffled) {
+                            batch.upsert(key, ByteBuffer.allocate(Long.BYTES).putLong(0, round * 2 + writer));
+                        }
+                        dao.write(batch);
+                    }
+                    return null;
+                }));
+            }
+
+            for (int scan = 0; scan < 200; scan++) {
+                try (Snapshot snapshot = ((LsmDAO) dao).snapshot()) {
+                    final Set<Long> batches = new HashSet<>();
+                    snapshot.iterator(ByteBuffer.allocate(0))
+                            .forEachRemaining(record -> batches.add(record.getValue().getLong()));
+                    assertTrue(batches.size() <= 1);
+                }
+            }
+            stopped.set(true);
+            for (final Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void tornBatch(@TempDir File root) throws IOException {
+        // Temporary directories of a test are the same
+        final File data = new File(root, "data");
+        final File crashed = new File(root, "crashed");
+        assertTrue(data.mkdir() && crashed.mkdir());
+
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final List<ByteBuffer> batched = new ArrayList<>();
+        final Config config = Config.builder().syncPolicy(SyncPolicy.GROUP_COMMIT).build();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            dao.upsert(key, value);
+            final WriteBatch batch = new WriteBatch();
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer batchedKey = randomKeyBuffer();
+                batched.add(batchedKey);
+                batch.upsert(batchedKey, randomValueBuffer());
+            }
+            dao.write(batch);
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(data.toPath())) {
+                for (final Path file : files) {
+                    Files.copy(file, crashed.toPath().resolve(file.getFileName()));
+                }
+            }
+        }
+
+        // Cut the last write of the batch
+        try (DirectoryStream<Path> logs = Files.newDirectoryStream(crashed.toPath(), "*.log")) {
+            for (final Path log : logs) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.truncate(channel.size() - Integer.BYTES - 1);
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(crashed, config)) {
+            assertEquals(value, dao.get(key));
+            for (final ByteBuffer batchedKey : batched) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(batchedKey));
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.re1nex.Config;
+import ru.mail.polis.dao.re1nex.LsmDAO;
+import ru.mail.polis.dao.re1nex.MemoryBudget;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flush and compaction write rate limit tests.
+ */
+class WriteRateLimitTest extends TestBase {
+    private static final int TABLES = 4;
+    private static final int TABLE_KEYS = 1024;
+    private static final long RATE = 4L * 1024 * 1024;
+    private static final long SLOW_RATE = 1024L * 1024;
+
+    @Test
+    void compactionIsThrottled(@TempDir File data) throws IOException {
+        // Only explicit compactions
+        final Config config = Config.builder()
+                .compactionThreshold(100)
+                .build();
+        final List<ByteBuffer> keys = fill(data, config);
+
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final LsmDAO lsm = (LsmDAO) dao;
+            assertEquals(0, lsm.getWriteRateLimit());
+            lsm.setWriteRateLimit(RATE);
+            assertEquals(RATE, lsm.getWriteRateLimit());
+
+            // About 4 MB of data must take about a second
+            final long start = System.nanoTime();
+            dao.compact();
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed >= 500, "Compacted in " + elapsed + " ms");
+
+            for (final ByteBuffer key : keys) {
+                dao.get(key);
+            }
+        }
+    }
+
+    @Test
+    void flushIsNotThrottledByCompaction(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .compactionThreshold(100)
+                .build();
+        fill(data, config);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (DAO dao = DAOFactory.create(data, config)) {
+            final LsmDAO lsm = (LsmDAO) dao;
+            final MemoryBudget budget = lsm.getMemoryBudget();
+            // About 4 MB of data must take about 4 seconds
+            lsm.setWriteRateLimit(SLOW_RATE);
+            final Future<?> compaction = executor.submit(() -> {
+                dao.compact();
+                return null;
+            });
+            Thread.sleep(200);
+
+            for (int i = 0; i < 64; i++) {
+                dao.upsert(randomKeyBuffer(), randomValueBuffer());
+            }
+            assertTrue(budget.getUsed(MemoryBudget.Pool.MEM_TABLES) > 0);
+            final long start = System.nanoTime();
+            // Flushes the MemTable before waiting for the running compaction
+            final Future<?> flush = executor.submit(() -> {
+                dao.compact();
+                return null;
+            });
+            while (budget.getUsed(MemoryBudget.Pool.MEM_TABLES) > 0) {
+                assertFalse(compaction.isDone(), "Flushed after the compaction");
+                Thread.sleep(10);
+            }
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed < 1000, "Flushed in " + elapsed + " ms");
+            assertFalse(compaction.isDone());
+
+            compaction.get();
+            flush.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void readsDuringCompaction(@TempDir File data) throws Exception {
+        final Config config = Config.builder()
+                .compactionThreshold(100)
+                .build();
+        final List<ByteBuffer> keys = fill(data, config);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (DAO dao = DAOFactory.create(data, config)) {
+            ((LsmDAO) dao).setWriteRateLimit(SLOW_RATE);
+            final Future<?> compaction = executor.submit(() -> {
+                dao.compact();
+                return null;
+            });
+
+            // Reads are not throttled, so none of them waits for the compaction
+            long slowest = 0;
+            int reads = 0;
+            while (!compaction.isDone()) {
+                final long start = System.nanoTime();
+                dao.get(keys.get(reads % keys.size()));
+                slowest = Math.max(slowest, System.nanoTime() - start);
+                reads++;
+            }
+            compaction.get();
+            assertTrue(reads > 0);
+            final long slowestMillis = TimeUnit.NANOSECONDS.toMillis(slowest);
+            assertTrue(slowestMillis < 500, "Read in " + slowestMillis + " ms");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static List<ByteBuffer> fill(
+            final File data,
+            final Config config) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = DAOFactory.create(data, config)) {
+                for (int i = 0; i < TABLE_KEYS; i++) {
+                    final ByteBuffer key = randomKeyBuffer();
+                    dao.upsert(key, randomValueBuffer());
+                    keys.add(key);
+                }
+            }
+        }
+        return keys;
+    }
+}
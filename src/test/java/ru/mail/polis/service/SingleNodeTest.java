@@ -99,6 +99,13 @@ class SingleNodeTest extends TestBase {
         return client.put(path(key), data);
     }
 
+    private Response upsert(
+            @NotNull final String key,
+            @NotNull final byte[] data,
+            @NotNull final String ttl) throws Exception {
+        return client.put(path(key) + "&ttl=" + ttl, data);
+    }
+
     @Test
     void emptyKey() {
         assertTimeoutPreemptively(TIMEOUT, () -> {
@@ -292,4 +299,39 @@ class SingleNodeTest extends TestBase {
             assertEquals(404, get(key).getStatus());
         });
     }
+
+    @Test
+    void expiring() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            // Insert for a second
+            assertEquals(201, upsert(key, value, "1").getStatus());
+
+            // Check
+            final Response response = get(key);
+            assertEquals(200, response.getStatus());
+            assertArrayEquals(value, response.getBody());
+
+            // Expired
+            Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+            assertEquals(404, get(key).getStatus());
+        });
+    }
+
+    @Test
+    void badTtl() {
+        assertTimeoutPreemptively(TIMEOUT, () -> {
+            final String key = randomId();
+            final byte[] value = randomValue();
+
+            assertEquals(400, upsert(key, value, "abracadabra").getStatus());
+            assertEquals(400, upsert(key, value, "-1").getStatus());
+            assertEquals(400, upsert(key, value, "0").getStatus());
+
+            // Nothing is stored
+            assertEquals(404, get(key).getStatus());
+        });
+    }
 }